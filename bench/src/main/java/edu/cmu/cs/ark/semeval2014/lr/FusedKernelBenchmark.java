@@ -0,0 +1,88 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One training pass of LRParser.updateExampleLogReg() against FusedAdagrad.updateExample() (-fusedKernel),
+ * over the real features of a training set, lildata's dm by default.
+ * Each fork runs the usual training pipeline with -numIters 0 to get the preprocessing, the percept vocab
+ * and the coefs, then extracts every sentence's features into memory, so only the updates are timed.
+ * Both start from zero coefs, and keep training for as long as JMH keeps calling them.
+ *
+ * From the repository root:  sbt "bench/jmh:run FusedKernelBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value=1, jvmArgsAppend={"-Xmx4g", "-Dfile.encoding=UTF-8"})
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+public class FusedKernelBenchmark {
+	/** the training set, as <data>.sdp and <data>.sdp.dependencies.  Its formalism is the last part of the name. */
+	@Param("lildata/liltrain.dm")
+	String data;
+
+	/** -numHashBuckets, or 0 for no hashing */
+	@Param({"0", "16777216"})
+	int numHashBuckets;
+
+	NumberizedSentence[] sentences;
+	FusedAdagrad fused;
+
+	@Setup
+	public void setUp() throws IOException {
+		File modelDir = Files.createTempDirectory("fusedbench").toFile();
+		String formalism = data.substring(data.lastIndexOf('.') + 1);
+		List<String> args = new ArrayList<>(Arrays.asList(
+				"-mode", "train", "-formalism", formalism,
+				"-sdpInput", data + ".sdp", "-depInput", data + ".sdp.dependencies",
+				"-model", new File(modelDir, "model").getPath(),
+				"-numIters", "0", "-saveEvery", "-1"));
+		if (numHashBuckets > 0) {
+			args.addAll(Arrays.asList("-useHashing", "-numHashBuckets", Integer.toString(numHashBuckets)));
+		}
+		LRParser.main(args.toArray(new String[0]));
+
+		sentences = new NumberizedSentence[LRParser.inputSentences.length];
+		for (int snum=0; snum<sentences.length; snum++) {
+			sentences[snum] = LRParser.extractFeatures(LRParser.model, snum);
+		}
+		fused = new FusedAdagrad(LRParser.numCoefs());
+	}
+
+	@Benchmark
+	public double updateExampleLogReg() {
+		double ll = 0;
+		for (int snum=0; snum<sentences.length; snum++) {
+			ll += LRParser.updateExampleLogReg(sentences[snum], LRParser.graphMatrices.get(snum), LRParser.inputSentences[snum]);
+		}
+		return ll;
+	}
+
+	@Benchmark
+	public double fusedUpdateExample() {
+		double ll = 0;
+		for (int snum=0; snum<sentences.length; snum++) {
+			ll += fused.updateExample(LRParser.model, sentences[snum], LRParser.graphMatrices.get(snum), LRParser.inputSentences[snum]);
+		}
+		return ll;
+	}
+}
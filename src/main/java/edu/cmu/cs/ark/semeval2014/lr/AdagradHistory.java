@@ -0,0 +1,203 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.util.Arrays;
+
+/**
+ * Lower-memory storage for the adagrad history (sum of squared gradients), for -adagradStorage.
+ * The default is LRParser.ssGrad, a float per coef; these trade some precision for memory:
+ *
+ *   bf16   2 bytes per coef: a float's upper 16 bits (bfloat16: full float exponent range, 8-bit mantissa).
+ *   log8   1 byte per coef: a float's exponent (over 2^-30 .. 2^34) and top 2 mantissa bits, i.e. roughly log scale, four steps per octave.
+ *   block  4 bytes per -adagradBlockSize coefs: one float shared by a block of consecutive coefs, accumulating their mean squared gradient.
+ *          Without hashing, the default block is one percept's coefs across all label features.
+ *   sparse 8 bytes (at most 50% load, so 16) per coef with a nonzero gradient so far: an open-addressing hash map from coef index to float.
+ *          Only saves memory when fewer than about 1 in 8 hash buckets ever get a gradient, i.e. -useHashing with far more
+ *          buckets than features.  Without hashing nearly every coef gets one, and it takes several times float's memory.
+ *          Not thread-safe, so single-threaded training only.
+ *
+ * bf16 and log8 round stochastically, so that a small gradient added to a large sum isn't always rounded away:
+ * the stored sum is right in expectation.
+ */
+abstract class AdagradHistory {
+	/** add g^2 to coef f's history, and return the new history. */
+	abstract double addSquare(int f, double g2);
+	abstract void resize(int len);
+	abstract long bytes();
+
+	static AdagradHistory create(String storage, int len) {
+		switch (storage) {
+		case "bf16": return new Bf16(len);
+		case "log8": return new Log8(len);
+		case "block": return new Blocked(len, LRParser.adagradBlockSize > 0 ? LRParser.adagradBlockSize :
+				LRParser.useHashing ? 16 : LRParser.model.labelFeatureVocab.size());
+		case "sparse": return new Sparse();
+		default: throw new RuntimeException("unknown adagrad storage " + storage);
+		}
+	}
+
+	/** xorshift state for stochastic rounding.  Races under Hogwild only perturb the random stream. */
+	int rngState = 0x9E3779B9;
+
+	int nextRandom() {
+		int x = rngState;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		rngState = x;
+		return x;
+	}
+
+	static class Bf16 extends AdagradHistory {
+		short[] hist;
+
+		Bf16(int len) {
+			hist = new short[len];
+		}
+
+		@Override
+		double addSquare(int f, double g2) {
+			float sum = Float.intBitsToFloat((hist[f] & 0xFFFF) << 16) + (float) g2;
+			// adding 16 random low bits before truncating rounds up with probability equal to the dropped fraction
+			int bits = Float.floatToRawIntBits(sum) + (nextRandom() & 0xFFFF);
+			hist[f] = (short) (bits >>> 16);
+			return sum;
+		}
+
+		@Override
+		void resize(int len) {
+			hist = Arrays.copyOf(hist, len);
+		}
+
+		@Override
+		long bytes() {
+			return 2L * hist.length;
+		}
+	}
+
+	static class Log8 extends AdagradHistory {
+		/** code c > 0 stands for the float with bits (c + CODE_BASE) << 21.  Code 1 is 2^-30, code 255 is about 2^33.75. */
+		static final int CODE_BASE = ((127 - 30) << 2) - 1;
+		static final float[] DECODE = new float[256];
+		static {
+			for (int c=1; c<256; c++) DECODE[c] = Float.intBitsToFloat((c + CODE_BASE) << 21);
+		}
+		byte[] hist;
+
+		Log8(int len) {
+			hist = new byte[len];
+		}
+
+		@Override
+		double addSquare(int f, double g2) {
+			float sum = DECODE[hist[f] & 0xFF] + (float) g2;
+			if (sum == 0) return 0;
+			int c = ((Float.floatToRawIntBits(sum) + (nextRandom() & 0x1FFFFF)) >>> 21) - CODE_BASE;
+			hist[f] = (byte) Math.max(1, Math.min(255, c));
+			return sum;
+		}
+
+		@Override
+		void resize(int len) {
+			hist = Arrays.copyOf(hist, len);
+		}
+
+		@Override
+		long bytes() {
+			return hist.length;
+		}
+	}
+
+	static class Blocked extends AdagradHistory {
+		final int blockSize;
+		float[] hist;
+
+		Blocked(int len, int blockSize) {
+			this.blockSize = blockSize;
+			hist = new float[numBlocks(len)];
+		}
+
+		int numBlocks(int len) {
+			return (len + blockSize - 1) / blockSize;
+		}
+
+		@Override
+		double addSquare(int f, double g2) {
+			int b = f / blockSize;
+			hist[b] += g2 / blockSize;
+			return hist[b];
+		}
+
+		@Override
+		void resize(int len) {
+			hist = Arrays.copyOf(hist, numBlocks(len));
+		}
+
+		@Override
+		long bytes() {
+			return 4L * hist.length;
+		}
+	}
+
+	static class Sparse extends AdagradHistory {
+		/** coef index + 1; 0 is an empty slot */
+		int[] keys = new int[1 << 16];
+		float[] vals = new float[1 << 16];
+		int size = 0;
+
+		/** the largest table: the arrays are indexed by int, and the size is a power of two. */
+		static final int MAX_CAPACITY = 1 << 30;
+
+		@Override
+		double addSquare(int f, double g2) {
+			int slot = find(keys, f);
+			if (keys[slot] == 0) {
+				// nothing to add, e.g. the L2 sweep's step on a zero coef: don't store an entry for it
+				if (g2 == 0) return 0;
+				if (2 * (size + 1) > keys.length) {
+					grow();
+					slot = find(keys, f);
+				}
+				keys[slot] = f + 1;
+				size++;
+			}
+			vals[slot] += g2;
+			return vals[slot];
+		}
+
+		/** the slot holding f, or the empty slot where it would go. */
+		static int find(int[] keys, int f) {
+			int mask = keys.length - 1;
+			int slot = Model.intHash1(f) & mask;
+			while (keys[slot] != 0 && keys[slot] != f + 1) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		void grow() {
+			if (keys.length >= MAX_CAPACITY) {
+				throw new RuntimeException("-adagradStorage sparse: more than 2^29 coefs with a gradient, use another storage");
+			}
+			int[] oldKeys = keys;
+			float[] oldVals = vals;
+			keys = new int[2 * oldKeys.length];
+			vals = new float[2 * oldVals.length];
+			for (int s=0; s<oldKeys.length; s++) {
+				if (oldKeys[s] == 0) continue;
+				int slot = find(keys, oldKeys[s] - 1);
+				keys[slot] = oldKeys[s];
+				vals[slot] = oldVals[s];
+			}
+		}
+
+		@Override
+		void resize(int len) {
+			// indexed by coef number, so nothing to do
+		}
+
+		@Override
+		long bytes() {
+			return 8L * keys.length;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * -asyncSave: the intermediate (.iterN) model saves copy the coefs into a snapshot buffer, and a background thread
+ * formats and writes the snapshot while training goes on.  At most -maxPendingSaves snapshots are in flight; the
+ * buffers are reused, and a save waits for a free one.  Snapshots are written one at a time, in order, each with
+ * Model.saveDurably(), so a model file is only ever replaced by a complete one.
+ */
+class AsyncModelSaver {
+	static ExecutorService writer;
+	static BlockingQueue<float[]> freeBuffers;
+	static final List<Future<?>> pending = new ArrayList<>();
+
+	static void start() {
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "async-model-saver");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		freeBuffers = new ArrayBlockingQueue<>(LRParser.maxPendingSaves);
+		for (int k=0; k < LRParser.maxPendingSaves; k++) {
+			freeBuffers.add(new float[0]);  // sized on first use
+		}
+	}
+
+	/** snapshot the current model's coefs, and queue the snapshot to be saved to file. */
+	static void save(final String file) {
+		if (writer == null) start();
+		checkFinishedSaves();
+		float[] buffer;
+		double t0 = System.currentTimeMillis();
+		try {
+			buffer = freeBuffers.take();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted waiting for a model save buffer", e);
+		}
+		double waited = System.currentTimeMillis() - t0;
+		if (waited > 1000) {
+			U.pf("waited %.1f sec for an earlier model save  ", waited/1000);
+		}
+
+		LRParser.flushLazyL2();
+		if (buffer.length != LRParser.numCoefs()) {
+			buffer = new float[LRParser.numCoefs()];
+		}
+		if (LRParser.fused != null) {
+			LRParser.fused.copyCoefsInto(buffer);
+		}
+		else {
+			System.arraycopy(LRParser.model.coefs, 0, buffer, 0, buffer.length);
+		}
+		final float[] snapshotCoefs = buffer;
+		final Model m = LRParser.model;
+		final Model snapshot = new Model(m.labelVocab, m.labelFeatureVocab, m.featuresByLabel, m.perceptVocab, snapshotCoefs);
+		pending.add(writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				double t0 = System.currentTimeMillis();
+				try {
+					snapshot.saveDurably(file);
+				} finally {
+					freeBuffers.add(snapshotCoefs);
+				}
+				U.pf("[saved %s in the background, %.1f sec]  ", file, (System.currentTimeMillis() - t0)/1000);
+				return null;
+			}
+		}));
+	}
+
+	/** surface any failed saves, and forget the finished ones. */
+	static void checkFinishedSaves() {
+		for (Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+			Future<?> f = it.next();
+			if ( ! f.isDone()) continue;
+			waitFor(f);
+			it.remove();
+		}
+	}
+
+	/** wait for every queued save to be written.  Call before the final save, and before exiting. */
+	static void finish() {
+		if (writer == null) return;
+		for (Future<?> f : pending) {
+			waitFor(f);
+		}
+		pending.clear();
+		writer.shutdown();
+		writer = null;
+	}
+
+	static void waitFor(Future<?> f) {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted waiting for a model save", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("background model save failed", e.getCause());
+		}
+	}
+}
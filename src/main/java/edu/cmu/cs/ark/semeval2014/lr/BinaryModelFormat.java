@@ -0,0 +1,245 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+import util.Vocabulary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.cs.ark.semeval2014.lr.MappedFeatureCache.MappedColumn;
+
+/**
+ * Binary model file, for -modelFormat binary.  Model.load() recognizes it by its magic number.
+ *
+ * File layout (header big-endian, like MappedFeatureCache):
+ *   int MAGIC, int VERSION, long offset of the coefs, long #coefs
+ *   long #hash buckets, 0 without hashing
+ *   int bits per coef: 32 for floats, or 8 or 16 for quantized coefs (see InferenceCoefs.Quantized); int block size, 0 for floats
+ *   label vocab, label feature vocab:  int size, then each name (DataOutput.writeUTF)
+ *   featuresByLabel:  int #labels, then for each, int length and the label feature numbers
+ *   percept vocab (empty under hashing)
+ *   zero padding up to the coefs offset, a multiple of ALIGNMENT
+ *   float[#coefs]  every coef, little-endian, including the ones the text format drops as ~0
+ *   or if quantized:  float[#blocks] scales, then byte[#coefs] or short[#coefs] codes, little-endian
+ *
+ * Loading reads the header and memory-maps the coefs instead of copying them onto the heap, so it's quick,
+ * and parsers on the same host that load the same file share its pages through the OS page cache.
+ * A mapped model is read-only: it's for test mode.  Under -inferenceCoefs sparse, the nonzero coefs are copied out instead.
+ * Quantized coefs are read onto the heap; they're a quarter or half the size.
+ *
+ * To convert an existing text model, optionally quantizing it (with a block size of -quantBlockSize's default):
+ *   java edu.cmu.cs.ark.semeval2014.lr.BinaryModelFormat model.txt model.bin [int8|int16]
+ */
+class BinaryModelFormat {
+	static final int MAGIC = 0x5344504D;  // "SDPM"
+	static final int VERSION = 1;
+	static final int ALIGNMENT = 4096;
+	/** where the coefs offset goes in the header, filled in once the rest of the header is written. */
+	static final int COEFS_OFFSET_POSITION = 8;
+
+	/** whether modelFile is a binary model, as opposed to a text one (or a resource, which is always text). */
+	static boolean isBinary(String modelFile) throws IOException {
+		File file = new File(modelFile);
+		if ( ! file.isFile() || file.length() < 4) return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	/** write m to file.  With sync, fsync before returning. */
+	static void write(Model m, File file, boolean sync) throws IOException {
+		final long numCoefs = m.numCoefs();
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1<<16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(0);  // coefs offset
+			out.writeLong(numCoefs);
+			out.writeLong(LRParser.useHashing ? (long) LRParser.numHashBuckets : 0);
+			InferenceCoefs.Quantized quantized = m.inferenceCoefs instanceof InferenceCoefs.Quantized ? (InferenceCoefs.Quantized) m.inferenceCoefs : null;
+			out.writeInt(quantized != null ? quantized.bits : 32);
+			out.writeInt(quantized != null ? quantized.blockSize() : 0);
+			writeVocab(out, m.labelVocab);
+			writeVocab(out, m.labelFeatureVocab);
+			out.writeInt(m.featuresByLabel.size());
+			for (int[] feats : m.featuresByLabel) {
+				out.writeInt(feats.length);
+				for (int k : feats) out.writeInt(k);
+			}
+			writeVocab(out, LRParser.useHashing ? new Vocabulary() : m.perceptVocab);
+			out.flush();
+
+			FileChannel ch = fos.getChannel();
+			final long coefsOffset = (ch.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+			ch.write(ByteBuffer.allocate((int) (coefsOffset - ch.position())));
+			ByteBuffer buf = ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+			if (quantized != null) {
+				for (float scale : quantized.scales) {
+					if (buf.remaining() < 4) writeFully(ch, buf);
+					buf.putFloat(scale);
+				}
+				for (int f=0; f < quantized.size; f++) {
+					if (buf.remaining() < 2) writeFully(ch, buf);
+					if (quantized.bits == 8) buf.put(quantized.q8[f]);
+					else buf.putShort(quantized.q16[f]);
+				}
+			}
+			else {
+				for (long f=0; f < numCoefs; f++) {
+					if (buf.remaining() < 4) writeFully(ch, buf);
+					buf.putFloat(m.coef(f));
+				}
+			}
+			writeFully(ch, buf);
+			ByteBuffer offset = ByteBuffer.allocate(8);
+			offset.putLong(coefsOffset).flip();
+			ch.write(offset, COEFS_OFFSET_POSITION);
+			if (sync) ch.force(true);
+		}
+	}
+
+	static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) ch.write(buf);
+		buf.clear();
+	}
+
+	static void writeVocab(DataOutputStream out, Vocabulary vocab) throws IOException {
+		out.writeInt(vocab.size());
+		for (String name : vocab.names()) out.writeUTF(name);
+	}
+
+	static Vocabulary readVocab(DataInputStream in) throws IOException {
+		Vocabulary vocab = new Vocabulary();
+		int n = in.readInt();
+		for (int i=0; i<n; i++) vocab.num(in.readUTF());
+		vocab.lock();
+		return vocab;
+	}
+
+	/** read the header and map the coefs.  Sets LRParser's hashing options, like the text loader. */
+	static Model read(String modelFile) throws IOException {
+		final long coefsOffset, numCoefs;
+		final int bits, blockSize;
+		final Vocabulary labelVocab, labelFeatureVocab, perceptVocab;
+		final List<int[]> featuresByLabel = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(modelFile), 1<<16))) {
+			int magic = in.readInt(), version = in.readInt();
+			if (magic != MAGIC || version != VERSION) {
+				throw new IOException("not a version " + VERSION + " binary model: " + modelFile);
+			}
+			coefsOffset = in.readLong();
+			numCoefs = in.readLong();
+			long numHashBuckets = in.readLong();
+			if (numHashBuckets > 0) {
+				LRParser.useHashing = true;
+				LRParser.numHashBuckets = numHashBuckets;
+			}
+			bits = in.readInt();
+			blockSize = in.readInt();
+			labelVocab = readVocab(in);
+			labelFeatureVocab = readVocab(in);
+			int numLabels = in.readInt();
+			for (int label=0; label<numLabels; label++) {
+				int[] feats = new int[in.readInt()];
+				for (int i=0; i<feats.length; i++) feats[i] = in.readInt();
+				featuresByLabel.add(feats);
+			}
+			perceptVocab = readVocab(in);
+		}
+		long expected = LRParser.useHashing ? (long) LRParser.numHashBuckets : (long) perceptVocab.size() * labelFeatureVocab.size();
+		if (numCoefs != expected) {
+			throw new IOException(U.sf("%s has %d coefs, but its vocabularies need %d", modelFile, numCoefs, expected));
+		}
+
+		U.pf("Label vocab (size %d): %s\n", labelVocab.size(), labelVocab.names());
+		U.pf("Label feature vocab (size %d)\n", labelFeatureVocab.size());
+		Model m = new Model(labelVocab, labelFeatureVocab, featuresByLabel, perceptVocab);
+		m.calculateLabelHashes();
+		if (bits != 32) {
+			m.inferenceCoefs = readQuantized(modelFile, coefsOffset, numCoefs, bits, blockSize);
+			U.pf("Num features: %d, %d coefs quantized to %d bits, %.1f MB\n", perceptVocab.size(), numCoefs, bits, m.inferenceCoefs.bytes()/1e6);
+			return m;
+		}
+
+		MappedColumn coefs;
+		try (FileChannel ch = FileChannel.open(Paths.get(modelFile), StandardOpenOption.READ)) {
+			if (ch.size() < coefsOffset + 4*numCoefs) {
+				throw new IOException("truncated binary model: " + modelFile);
+			}
+			coefs = new MappedColumn(ch, coefsOffset, numCoefs, 4, ByteOrder.LITTLE_ENDIAN);
+		}
+		U.pf("Num features: %d, %d coefs mapped from %s\n", perceptVocab.size(), numCoefs, modelFile);
+		m.inferenceCoefs = new InferenceCoefs.Mapped(coefs);
+		if (LRParser.inferenceCoefs.equals("sparse")) {
+			// copy the kept coefs onto the heap, like the text loader would, and drop the mapping
+			InferenceCoefs.Sparse sparseCoefs = new InferenceCoefs.Sparse(numCoefs);
+			for (long f=0; f < numCoefs; f++) {
+				float coef = coefs.getFloat(f);
+				if (Math.abs(coef) >= Model.MINIMUM_WEIGHT_THRESHOLD) sparseCoefs.put((int) f, coef);
+			}
+			m.inferenceCoefs = sparseCoefs;
+			U.pf("Sparse coefs: %d stored of %d, %.1f MB\n", sparseCoefs.numStored, sparseCoefs.size(), sparseCoefs.bytes()/1e6);
+		}
+		return m;
+	}
+
+	static InferenceCoefs.Quantized readQuantized(String modelFile, long offset, long numCoefs, int bits, int blockSize) throws IOException {
+		InferenceCoefs.Quantized q = new InferenceCoefs.Quantized(bits, blockSize, numCoefs);
+		try (FileChannel ch = FileChannel.open(Paths.get(modelFile), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+			buf.limit(0);  // empty, so the first read fills it
+			long pos = offset;
+			for (int b=0; b < q.scales.length; b++) {
+				if (buf.remaining() < 4) pos = readChunk(ch, pos, buf, modelFile);
+				q.scales[b] = buf.getFloat();
+			}
+			for (int f=0; f < q.size; f++) {
+				if (buf.remaining() < 2) pos = readChunk(ch, pos, buf, modelFile);
+				if (bits == 8) q.q8[f] = buf.get();
+				else q.q16[f] = buf.getShort();
+			}
+		}
+		return q;
+	}
+
+	/** refill buf from the file at pos, keeping buf's unread bytes.  Returns the new file position. */
+	static long readChunk(FileChannel ch, long pos, ByteBuffer buf, String modelFile) throws IOException {
+		buf.compact();
+		while (buf.hasRemaining()) {
+			int n = ch.read(buf, pos);
+			if (n < 0) break;
+			pos += n;
+		}
+		buf.flip();
+		if ( ! buf.hasRemaining()) throw new IOException("truncated binary model: " + modelFile);
+		return pos;
+	}
+
+	/** convert a text model (or a binary one) to binary, and maybe quantize it. */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3 || (args.length == 3 && ! args[2].matches("int8|int16"))) {
+			System.err.println("Usage: BinaryModelFormat <input model> <output binary model> [int8|int16]");
+			System.exit(1);
+		}
+		if (args.length == 3) LRParser.inferenceCoefs = args[2];
+		double t0 = System.currentTimeMillis();
+		Model m = Model.load(args[0]);
+		U.pf("Loaded %s in %.1f sec\n", args[0], (System.currentTimeMillis() - t0)/1000);
+		write(m, new File(args[1]), true);
+		U.pf("Wrote %s (%d bytes)\n", args[1], new File(args[1]).length());
+	}
+}
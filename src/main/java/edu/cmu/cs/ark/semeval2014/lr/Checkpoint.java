@@ -0,0 +1,197 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * -checkpointEvery/-resumeFrom: everything needed to continue a training run exactly where it stopped.
+ * That's the coefs with their adagrad history (and lazy L2 bookkeeping), the next iter, the sentence orders,
+ * the random number generators, and the dev early-stopping state.
+ *
+ * The percept vocab isn't restored from the checkpoint: resuming redoes the first pass in the original order,
+ * which rebuilds the same vocab.  The checkpoint's copy is only there to check that it did.
+ * The preprocessing models and top classifier are loaded from where the original run saved them, under -model.
+ */
+class Checkpoint {
+	static final int MAGIC = 0x53445043;
+	static final int VERSION = 2;
+	/** floats per read/write chunk */
+	static final int IO_CHUNK = 1 << 20;
+
+	int nextIter;
+	double lastIterLL;
+	List<String> perceptNames;
+	/** the order the first pass extracted the sentences in, i.e. the feature cache's order. */
+	List<Integer> firstPassOrder;
+	/** the order of the last finished iter. */
+	List<Integer> lastOrder;
+	Random shuffleRandom;
+	Random noedgeSampler;
+	int l2StepsDue;
+	int[] l2StepsApplied;
+	double devBestF1;
+	int devBestIter;
+	int devItersSinceBest;
+	boolean hasDevBestCoefs;
+	/** still open on the coef arrays, which restore() reads straight into the allocated training state. */
+	ObjectInputStream in;
+
+	static File file() {
+		return new File(LRParser.modelFile + ".checkpoint");
+	}
+
+	/** write the state as of the end of iter outer.  Written to a temp file then renamed, so the checkpoint is always complete. */
+	static void write(int outer) throws IOException {
+		double t0 = System.currentTimeMillis();
+		File f = file();
+		File tmp = new File(f.getPath() + ".tmp");
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(optionsDescription());
+			out.writeInt(outer + 1);
+			out.writeDouble(LRParser.lastIterLL);
+			out.writeObject(new ArrayList<>(LRParser.model.perceptVocab.names()));
+			out.writeObject(toArray(LRParser.cacheOrder != null ? LRParser.cacheOrder : LRParser.sentenceIndexOrder));
+			out.writeObject(toArray(LRParser.sentenceIndexOrder));
+			out.writeObject(LRParser.shuffleRandom);
+			out.writeObject(LRParser.noedgeSampler);
+			out.writeInt(LRParser.l2StepsDue);
+			out.writeObject(LRParser.l2StepsApplied);
+			out.writeDouble(DevEvaluator.bestF1);
+			out.writeInt(DevEvaluator.bestIter);
+			out.writeInt(DevEvaluator.itersSinceBest);
+			out.writeBoolean(DevEvaluator.bestCoefs != null);
+			if (DevEvaluator.bestCoefs != null) writeFloats(out, DevEvaluator.bestCoefs);
+			float[][] state = ParameterMixing.trainingState();
+			out.writeInt(state.length);
+			for (float[] arr : state) writeFloats(out, arr);
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		double dur = System.currentTimeMillis() - t0;
+		U.pf("Wrote checkpoint %s (%.1f sec)\n", f, dur/1000);
+	}
+
+	/** read everything but the coef arrays, which restore() reads once they're allocated. */
+	static Checkpoint read(String file) throws IOException {
+		U.pf("Resuming from checkpoint %s\n", file);
+		Checkpoint c = new Checkpoint();
+		c.in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+		try {
+			if (c.in.readInt() != MAGIC) throw new IOException("not a training checkpoint: " + file);
+			if (c.in.readInt() != VERSION) throw new IOException("unsupported checkpoint version in " + file);
+			String options = c.in.readUTF();
+			if ( ! options.equals(optionsDescription())) {
+				throw new IOException(U.sf("checkpoint %s was written with different options (%s) than these (%s)", file, options, optionsDescription()));
+			}
+			c.nextIter = c.in.readInt();
+			c.lastIterLL = c.in.readDouble();
+			c.perceptNames = readList(c.in);
+			c.firstPassOrder = toList((int[]) c.in.readObject());
+			c.lastOrder = toList((int[]) c.in.readObject());
+			c.shuffleRandom = (Random) c.in.readObject();
+			c.noedgeSampler = (Random) c.in.readObject();
+			c.l2StepsDue = c.in.readInt();
+			c.l2StepsApplied = (int[]) c.in.readObject();
+			c.devBestF1 = c.in.readDouble();
+			c.devBestIter = c.in.readInt();
+			c.devItersSinceBest = c.in.readInt();
+			c.hasDevBestCoefs = c.in.readBoolean();
+		} catch (ClassNotFoundException e) {
+			c.in.close();
+			throw new IOException("bad checkpoint " + file, e);
+		}
+		U.pf("Continuing at iter %d\n", c.nextIter);
+		return c;
+	}
+
+	/** the options that change the layout of the training state.  A checkpoint can only be resumed under the same ones. */
+	static String optionsDescription() {
+		return U.sf("useHashing=%s numHashBuckets=%s fusedKernel=%s lazyL2=%s", LRParser.useHashing, LRParser.numHashBuckets, LRParser.fusedKernel, LRParser.lazyL2);
+	}
+
+	/** after the first pass and allocateCoefs(): check the vocab came out the same, and put the training state back. */
+	void restore() throws IOException {
+		try {
+			if ( ! perceptNames.equals(LRParser.model.perceptVocab.names())) {
+				throw new IOException("the percept vocab came out different from the checkpoint's; was the data or the feature extraction changed?");
+			}
+			LRParser.sentenceIndexOrder = lastOrder;
+			LRParser.lastIterLL = lastIterLL;
+			LRParser.shuffleRandom = shuffleRandom;
+			LRParser.noedgeSampler = noedgeSampler;
+			LRParser.l2StepsDue = l2StepsDue;
+			LRParser.l2StepsApplied = l2StepsApplied;
+			DevEvaluator.bestF1 = devBestF1;
+			DevEvaluator.bestIter = devBestIter;
+			DevEvaluator.itersSinceBest = devItersSinceBest;
+			if (hasDevBestCoefs) {
+				DevEvaluator.bestCoefs = new float[in.readInt()];
+				readFloats(in, DevEvaluator.bestCoefs);
+			}
+			float[][] state = ParameterMixing.trainingState();
+			if (in.readInt() != state.length) throw new IOException("wrong number of arrays in checkpoint");
+			for (float[] arr : state) {
+				if (in.readInt() != arr.length) throw new IOException("array length mismatch in checkpoint");
+				readFloats(in, arr);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** int length, then the floats, little-endian, in chunks. */
+	static void writeFloats(ObjectOutputStream out, float[] arr) throws IOException {
+		out.writeInt(arr.length);
+		ByteBuffer buf = ByteBuffer.allocate(4 * Math.min(IO_CHUNK, arr.length)).order(ByteOrder.LITTLE_ENDIAN);
+		for (int off=0; off < arr.length; off += IO_CHUNK) {
+			int n = Math.min(IO_CHUNK, arr.length - off);
+			buf.clear();
+			buf.asFloatBuffer().put(arr, off, n);
+			out.write(buf.array(), 0, 4*n);
+		}
+	}
+
+	/** the floats after writeFloats()'s length, which the caller has read and checked. */
+	static void readFloats(ObjectInputStream in, float[] arr) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4 * Math.min(IO_CHUNK, arr.length)).order(ByteOrder.LITTLE_ENDIAN);
+		for (int off=0; off < arr.length; off += IO_CHUNK) {
+			int n = Math.min(IO_CHUNK, arr.length - off);
+			in.readFully(buf.array(), 0, 4*n);
+			buf.clear();
+			buf.asFloatBuffer().get(arr, off, n);
+		}
+	}
+
+	static int[] toArray(List<Integer> list) {
+		int[] arr = new int[list.size()];
+		for (int i=0; i<arr.length; i++) arr[i] = list.get(i);
+		return arr;
+	}
+
+	static List<Integer> toList(int[] arr) {
+		List<Integer> list = new ArrayList<>(arr.length);
+		for (int x : arr) list.add(x);
+		return list;
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<String> readList(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		return (List<String>) in.readObject();
+	}
+}
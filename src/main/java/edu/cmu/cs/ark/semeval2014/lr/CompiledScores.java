@@ -0,0 +1,119 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+
+/**
+ * -compileScores: test-time scoring with the label-feature expansion folded in.  Percept p adds the same amount to
+ * label l's score wherever it occurs: the sum of coef(p, f) over l's label features f.  So that's computed once, into a row of
+ * K = #labels floats, and scoring a nonzero becomes one row lookup and a K-wide add, instead of a coefIdx (a hash, under
+ * hashing) and a coef lookup per (label, label feature) pair.
+ *
+ * Without hashing, every percept in the vocab gets its row up front: #percepts x K floats.
+ * Under hashing there's no percept vocab, so each thread keeps a direct-mapped cache of -compiledCacheRows rows,
+ * filled on a miss.  Per-thread, so decoding threads never see each other's half-written rows.
+ *
+ * Rows are floats, and each sums its label features before multiplying by the value, so scores can differ from
+ * Model's uncompiled ones by float rounding.  The rows are a snapshot of the coefs: this is for test mode only.
+ */
+class CompiledScores {
+	final Model model;
+	final int numLabels;
+	/** without hashing: percept p's row is rows[p*numLabels ..] */
+	final float[] rows;
+	/** under hashing */
+	final ThreadLocal<RowCache> caches;
+
+	private CompiledScores(Model model) {
+		this.model = model;
+		numLabels = model.labelVocab.size();
+		if (LRParser.useHashing) {
+			rows = null;
+			caches = new ThreadLocal<RowCache>() {
+				@Override
+				protected RowCache initialValue() {
+					return new RowCache(LRParser.compiledCacheRows, numLabels);
+				}
+			};
+		}
+		else {
+			long len = (long) model.perceptVocab.size() * numLabels;
+			assert len <= Integer.MAX_VALUE : "too many percepts x labels to compile";
+			rows = new float[(int) len];
+			caches = null;
+		}
+	}
+
+	static CompiledScores compile(Model model) {
+		double t0 = System.currentTimeMillis();
+		CompiledScores c = new CompiledScores(model);
+		if (c.rows != null) {
+			for (int p=0; p < model.perceptVocab.size(); p++) {
+				c.computeRow(p, c.rows, p * c.numLabels);
+			}
+			U.pf("Compiled %d percepts x %d labels, %.1f MB, in %.1f sec\n", model.perceptVocab.size(), c.numLabels,
+					4.0*c.rows.length/1e6, (System.currentTimeMillis() - t0)/1000);
+		}
+		else {
+			U.pf("Compiling percept rows on demand, up to %d per thread (%.1f MB each)\n",
+					LRParser.compiledCacheRows, 4.0*LRParser.compiledCacheRows*c.numLabels/1e6);
+		}
+		return c;
+	}
+
+	/** percept p's label scores, written to out[offset .. offset+numLabels). */
+	void computeRow(int perceptIdx, float[] out, int offset) {
+		for (int label=0; label<numLabels; label++) {
+			double sum = 0;
+			for (int labelFeatureIdx : model.featuresByLabel.get(label)) {
+				sum += model.coef(model.coefIdx64(perceptIdx, labelFeatureIdx));
+			}
+			out[offset + label] = (float) sum;
+		}
+	}
+
+	/** scores[label] += value * percept p's score for label, for every label. */
+	void addScores(int perceptIdx, double value, double[] scores) {
+		final float[] r;
+		final int offset;
+		if (rows != null) {
+			r = rows;
+			offset = perceptIdx * numLabels;
+		}
+		else {
+			RowCache cache = caches.get();
+			r = cache.rows;
+			offset = cache.rowOffset(perceptIdx);
+		}
+		for (int label=0; label<numLabels; label++) {
+			scores[label] += r[offset + label] * value;
+		}
+	}
+
+	/** direct-mapped: a percept can only go in one slot, and evicts whatever was there. */
+	class RowCache {
+		final int mask;
+		final int[] keys;
+		final boolean[] filled;  // under hashing any int is a percept number, so there's no spare key for empty
+		final float[] rows;
+
+		RowCache(int capacity, int numLabels) {
+			assert Integer.bitCount(capacity) == 1;
+			mask = capacity - 1;
+			keys = new int[capacity];
+			filled = new boolean[capacity];
+			rows = new float[capacity * numLabels];
+		}
+
+		/** where percept p's row is, computing it first on a miss. */
+		int rowOffset(int perceptIdx) {
+			final int slot = Model.intHash1(perceptIdx) & mask;
+			final int offset = slot * numLabels;
+			if ( ! filled[slot] || keys[slot] != perceptIdx) {
+				computeRow(perceptIdx, rows, offset);
+				keys[slot] = perceptIdx;
+				filled[slot] = true;
+			}
+			return offset;
+		}
+	}
+}
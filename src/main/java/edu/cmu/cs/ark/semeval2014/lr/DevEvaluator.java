@@ -0,0 +1,196 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+import util.Vocabulary;
+import util.misc.Triple;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentence;
+import edu.cmu.cs.ark.semeval2014.prune.Prune;
+import edu.cmu.cs.ark.semeval2014.util.GenerateGraphsAndVocab;
+import edu.cmu.cs.ark.semeval2014.utils.Corpus;
+
+/**
+ * -devSdp/-devDeps: after every training iter, decode the dev set in this process and score it, and stop training
+ * once the dev score hasn't improved for -devPatience iters.  Only the best iter's model is saved.
+ *
+ * The score is labeled F1 over edges, i.e. (head, dependent, label) triples.  Unlike sdp.tools.Evaluator's LF, tops
+ * aren't counted, since they come from the separately trained top classifier and don't change between iters.
+ */
+class DevEvaluator {
+	static InputAnnotatedSentence[] devSentences;
+	static List<int[][]> goldMatrices;
+	static Vocabulary goldLabelVocab;
+	/** dev features, extracted at the first evaluation.  The percept vocab is locked by then, so they don't change. */
+	static NumberizedSentence[] devFeatures;
+	/** under -lazyL2: every coef index the dev features read, so scoring only has to catch those up.  Set at the first evaluation. */
+	static int[] devCoefIdxs;
+	/** decodes the dev set, made once in load() for the whole training run. */
+	static ExecutorService pool;
+
+	static double bestF1 = -1;
+	static int bestIter = -1;
+	static int itersSinceBest = 0;
+	/** a copy of model.coefs as of bestIter. */
+	static float[] bestCoefs;
+
+	/** read the dev set, and run the preprocessor models (already trained and saved by now) over it. */
+	static void load() throws IOException {
+		devSentences = Corpus.getInputAnnotatedSentences(LRParser.devDepFile);
+		GenerateGraphsAndVocab generateGAndV = new GenerateGraphsAndVocab(LRParser.devSdpFile);
+		goldMatrices = generateGAndV.getGraphMatrices();
+		goldLabelVocab = generateGAndV.getLabelVocab();
+		assert goldMatrices.size() == devSentences.length : "-devDeps and -devSdp have different numbers of sentences";
+		U.pf("%d dev sentences from %s\n", devSentences.length, LRParser.devDepFile);
+
+		Prune devPreprocessor = new Prune(devSentences, LRParser.modelFile);
+		devPreprocessor.loadModels();
+		devPreprocessor.predictIntoInputs();
+
+		pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dev-decoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Score the current model on the dev set, and keep it if it's the best so far.
+	 * Returns whether training should stop.
+	 *
+	 * Under -lazyL2, scoring only catches up the coefs the dev features read, rather than flushing every coef.
+	 * The first evaluation, before those are known, and keeping a new best, which copies every coef, still flush them all:
+	 * there it costs what the eager per-iteration sweep would.
+	 */
+	static boolean evaluateAfterIter(int outer) {
+		double t0 = System.currentTimeMillis();
+		LRParser.awaitTopClassifier();  // decoding picks the tops
+		final boolean synced = devCoefIdxs == null || ! LRParser.lazyL2;
+		if (synced) {
+			LRParser.syncModelCoefs();
+		}
+		else {
+			for (int f : devCoefIdxs) {
+				LRParser.catchUpL2(f);
+			}
+			LRParser.copyFusedCoefs();
+		}
+		List<MyGraph> predicted = decodeAll();
+		if (LRParser.lazyL2 && devCoefIdxs == null) {
+			devCoefIdxs = devCoefIdxs();
+		}
+		double[] prf = labeledPRF(predicted);
+		double dur = System.currentTimeMillis() - t0;
+		boolean improved = prf[2] > bestF1;
+		U.pf("dev iter %3d  LP %.4f  LR %.4f  LF %.4f%s  (%.1f sec)\n", outer, prf[0], prf[1], prf[2], improved ? "  *best*" : "", dur/1000);
+		if (improved) {
+			bestF1 = prf[2];
+			bestIter = outer;
+			itersSinceBest = 0;
+			if ( ! synced) LRParser.syncModelCoefs();
+			if (bestCoefs == null || bestCoefs.length != LRParser.model.coefs.length) {
+				bestCoefs = new float[LRParser.model.coefs.length];
+			}
+			System.arraycopy(LRParser.model.coefs, 0, bestCoefs, 0, bestCoefs.length);
+			return false;
+		}
+		itersSinceBest++;
+		if (itersSinceBest >= LRParser.devPatience) {
+			U.pf("Stopping early: dev LF hasn't improved for %d iters, best was %.4f at iter %d\n", itersSinceBest, bestF1, bestIter);
+			return true;
+		}
+		return false;
+	}
+
+	/** save the best iter's model instead of the current one. */
+	static void saveBest(String file) throws IOException {
+		assert bestCoefs != null : "no dev evaluation happened";
+		U.pf("Saving the model from iter %d, dev LF %.4f\n", bestIter, bestF1);
+		LRParser.model.coefs = bestCoefs;
+		LRParser.model.save(file);
+		pool.shutdown();
+	}
+
+	/** the distinct coef indexes that inference reads for the dev features, as in Model.inferEdgeScores(). */
+	static int[] devCoefIdxs() {
+		final Model model = LRParser.model;
+		BitSet read = new BitSet(LRParser.numCoefs());
+		for (NumberizedSentence ns : devFeatures) {
+			for (int kk=0; kk<ns.nnz; kk++) {
+				for (int label=0; label < model.labelVocab.size(); label++) {
+					for (int labelFeatureIdx : model.featuresByLabel.get(label)) {
+						read.set(model.coefIdx(ns.perceptnum(kk), labelFeatureIdx));
+					}
+				}
+			}
+		}
+		int[] idxs = new int[read.cardinality()];
+		int k = 0;
+		for (int f = read.nextSetBit(0); f >= 0; f = read.nextSetBit(f+1)) {
+			idxs[k++] = f;
+		}
+		return idxs;
+	}
+
+	/** extract (the first time) and decode every dev sentence, in parallel like ParallelParser.makePredictions. */
+	static List<MyGraph> decodeAll() {
+		final boolean extract = devFeatures == null;
+		if (extract) devFeatures = new NumberizedSentence[devSentences.length];
+		try {
+			List<Future<MyGraph>> futures = new ArrayList<>();
+			for (int s=0; s<devSentences.length; s++) {
+				final int snum = s;
+				futures.add(pool.submit(new Callable<MyGraph>() {
+					@Override
+					public MyGraph call() {
+						if (extract) {
+							devFeatures[snum] = LRParser.extractFeatures(LRParser.model, devSentences[snum], null);
+						}
+						return LRParser.decodeToGraph(devSentences[snum], devFeatures[snum]);
+					}
+				}));
+			}
+			List<MyGraph> graphs = new ArrayList<>();
+			for (Future<MyGraph> f : futures) graphs.add(f.get());
+			return graphs;
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("dev set decoding failed", e);
+		}
+	}
+
+	/** labeled precision, recall, F1 of the predicted edges against the gold graphs. */
+	static double[] labeledPRF(List<MyGraph> predicted) {
+		final int noEdgeIdx = goldLabelVocab.num(LRParser.NO_EDGE);
+		long numGold = 0, numPred = 0, numCorrect = 0;
+		for (int s=0; s<predicted.size(); s++) {
+			int[][] gold = goldMatrices.get(s);
+			for (int[] row : gold) {
+				for (int label : row) {
+					if (label != noEdgeIdx) numGold++;
+				}
+			}
+			for (Triple<Integer,Integer,String> e : predicted.get(s).edgelist) {
+				numPred++;
+				int goldLabel = gold[e.first][e.second];
+				if (goldLabel != noEdgeIdx && goldLabelVocab.name(goldLabel).equals(e.third)) numCorrect++;
+			}
+		}
+		double p = numPred == 0 ? 0 : numCorrect * 1.0 / numPred;
+		double r = numGold == 0 ? 0 : numCorrect * 1.0 / numGold;
+		double f = p + r == 0 ? 0 : 2*p*r / (p+r);
+		return new double[] { p, r, f };
+	}
+}
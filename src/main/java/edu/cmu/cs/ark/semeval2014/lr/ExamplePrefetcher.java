@@ -0,0 +1,86 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads (or extracts) the training examples of one iteration on a background thread, via LRParser.getNextExample(),
+ * into a bounded queue, so cache decoding overlaps with the training updates.  With a capacity of 2 it's double buffering.
+ * 
+ * Sentences are copied into a small pool of recycled NumberizedSentences: a thread's previous sentence goes back
+ * into the pool when it take()s the next one, which is the same reuse contract as FeatureCache.next().
+ */
+class ExamplePrefetcher {
+	final List<Integer> order;
+	final BlockingQueue<NumberizedSentence> queue;
+	final ConcurrentLinkedQueue<NumberizedSentence> pool = new ConcurrentLinkedQueue<>();
+	final ThreadLocal<NumberizedSentence> lastTaken = new ThreadLocal<>();
+	final Thread reader;
+	volatile Throwable readerFailure;
+	/** total time consumers spent blocked waiting for the reader */
+	long stalledNanos = 0;
+
+	ExamplePrefetcher(List<Integer> order, int capacity) {
+		this.order = order;
+		queue = new ArrayBlockingQueue<>(capacity);
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int snum : ExamplePrefetcher.this.order) {
+						NumberizedSentence buffer = pool.poll();
+						if (buffer == null) buffer = new NumberizedSentence(0);
+						buffer.copyFrom(LRParser.getNextExample(snum));
+						queue.put(buffer);
+					}
+				} catch (InterruptedException e) {
+					// finish() gave up on us
+				} catch (Throwable t) {
+					readerFailure = t;
+				}
+			}
+		}, "example-prefetcher");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** The next example, in the order given to the constructor. */
+	NumberizedSentence take() {
+		NumberizedSentence previous = lastTaken.get();
+		if (previous != null) pool.add(previous);
+
+		NumberizedSentence ns = queue.poll();
+		if (ns == null) {
+			long t0 = System.nanoTime();
+			try {
+				while (ns == null) {
+					if (readerFailure != null) {
+						throw new RuntimeException("example prefetcher failed", readerFailure);
+					}
+					ns = queue.poll(100, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			synchronized (this) {
+				stalledNanos += System.nanoTime() - t0;
+			}
+		}
+		lastTaken.set(ns);
+		return ns;
+	}
+
+	/** wait for the reader thread; returns seconds consumers were stalled. */
+	double finish() {
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		return stalledNanos / 1e9;
+	}
+}
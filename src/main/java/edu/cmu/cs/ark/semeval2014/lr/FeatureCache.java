@@ -0,0 +1,44 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.io.IOException;
+
+/**
+ * Holds the NumberizedSentence of every training sentence after the first pass, so later iterations
+ * don't have to redo feature extraction.
+ * Sentences are written once, in sentenceIndexOrder, then read back in that same order every iteration.
+ */
+abstract class FeatureCache {
+	/** append the next sentence.  only called from one thread. */
+	abstract void write(NumberizedSentence ns);
+
+	/** called once after the last write(). */
+	abstract void finishWriting() throws IOException;
+
+	/** rewind to the first sentence.  called at the start of every training iteration. */
+	abstract void startIteration() throws IOException;
+
+	/**
+	 * the next sentence of the current iteration.
+	 * Implementations may hand back the same object again on the calling thread's next call,
+	 * so don't hold on to it past the current training update.
+	 */
+	abstract NumberizedSentence next();
+
+	/** whether get() works, which lets each training iteration visit the sentences in a different order. */
+	boolean supportsRandomAccess() {
+		return false;
+	}
+
+	/**
+	 * the sentence that was written position'th.  Only for random-access caches.
+	 * Reuses objects like next() does, but is safe to call from several threads at once.
+	 */
+	NumberizedSentence get(int position) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " can only be read in order");
+	}
+
+	abstract long sizeInBytes();
+
+	/** release everything, including the cache file. */
+	abstract void delete() throws IOException;
+}
@@ -0,0 +1,162 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.util.Arrays;
+
+import util.Arr;
+
+import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentence;
+
+/**
+ * Training-time parameter storage plus a fused version of LRParser.updateExampleLogReg(), for -fusedKernel.
+ * 
+ * - Coef f lives at w[2f] and its adagrad sum of squared gradients at w[2f+1], so an update touches one cache line, not two.
+ * - A nonzero's coef indexes for every (label, label feature) pair are resolved once, with the percept-side hashing done
+ *   once (see Model.resolveCoefIdxs), then reused for lazy L2 catch-up, scoring, and the update.
+ * - Labels whose residual is below minResidual get no update.  At the default of 0 nothing is skipped, and the
+ *   arithmetic matches the unfused path exactly, so single-threaded results are identical.
+ * 
+ * Like the rest of the trainer, this depends on globals in LRParser.
+ */
+class FusedAdagrad {
+	/** w is 2*numCoefs long, so numCoefs has to stay below 2^30 for that to fit in an int. */
+	static final int MAX_COEFS = 1 << 30;
+
+	/** interleaved: [2f] = coef f, [2f+1] = its adagrad history. */
+	float[] w;
+
+	/** per-thread scratch for the resolved coef indexes of a sentence: nnz * (#label,labelfeature pairs) */
+	final ThreadLocal<int[]> scratchIdxs = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1<<16];
+		}
+	};
+
+	FusedAdagrad(int numCoefs) {
+		checkNumCoefs(numCoefs);
+		w = new float[2*numCoefs];
+	}
+
+	int numCoefs() { return w.length / 2; }
+
+	float coef(int f) { return w[2*f]; }
+
+	void resize(int numCoefs) {
+		checkNumCoefs(numCoefs);
+		w = Arrays.copyOf(w, 2*numCoefs);
+	}
+
+	/** checked even without -ea: past MAX_COEFS, 2*numCoefs wraps around instead of failing on its own. */
+	static void checkNumCoefs(int numCoefs) {
+		if (numCoefs >= MAX_COEFS) {
+			throw new IllegalArgumentException("too many coefs for -fusedKernel: " + numCoefs + ", it holds fewer than 2^30");
+		}
+	}
+
+	/** copy the coefs into the plain layout, e.g. model.coefs before saving. */
+	void copyCoefsInto(float[] coefs) {
+		for (int f=0; f < coefs.length; f++) {
+			coefs[f] = w[2*f];
+		}
+	}
+
+	/** same as LRParser.adagradStoreRate() */
+	double adagradStoreRate(int f, double g) {
+		w[2*f+1] += g*g;
+		if (w[2*f+1] < 1e-2) return 10.0; // 1/sqrt(.01)
+		return 1.0 / Math.sqrt(w[2*f+1]);
+	}
+
+	/** same as LRParser.l2Step() */
+	double l2Step(int f) {
+		double logprior = -0.5 * LRParser.l2reg * w[2*f]*w[2*f];
+		double g = LRParser.l2reg * w[2*f];
+		w[2*f] -= adagradStoreRate(f,g) * LRParser.learningRate * g;
+		return logprior;
+	}
+
+	/** fused LRParser.updateExampleLogReg() */
+	double updateExample(Model model, NumberizedSentence sentence, int[][] edgeMatrix, InputAnnotatedSentence isent) {
+		final int numLabels = model.labelVocab.size();
+		final int noEdgeIdx = model.labelVocab.num(LRParser.NO_EDGE);
+		final int width = model.numLabelCoefs();
+		final float[] w = this.w;
+
+		int[] idxs = scratchIdxs.get();
+		if (idxs.length < sentence.nnz * width) {
+			idxs = new int[Math.max(sentence.nnz * width, 2*idxs.length)];
+			scratchIdxs.set(idxs);
+		}
+
+		final boolean[][] skip = LRParser.skippedPairs(isent, edgeMatrix, noEdgeIdx);
+		final double noedgeW = LRParser.noedgeTrainWeight();
+
+		// resolve indexes, and score
+		double logprior = 0;
+		double[][][] probs = new double[sentence.T][sentence.T][numLabels];
+		for (int kk = 0; kk < sentence.nnz; kk++) {
+			if (skip != null && skip[sentence.i(kk)][sentence.j(kk)]) continue;
+			final int base = kk * width;
+			model.resolveCoefIdxs(sentence.perceptnum(kk), idxs, base);
+			final double[] edgeScores = probs[sentence.i(kk)][sentence.j(kk)];
+			final float value = sentence.value(kk);
+			int p = base;
+			for (int label = 0; label < numLabels; label++) {
+				final int numFeats = model.featuresByLabel.get(label).length;
+				for (int q = 0; q < numFeats; q++, p++) {
+					final int f = idxs[p];
+					if (LRParser.lazyL2) logprior += LRParser.catchUpL2(f);
+					edgeScores[label] += w[2*f] * value;
+				}
+			}
+		}
+		for (int i=0; i<sentence.T; i++) {
+			for (int j=0; j<sentence.T; j++) {
+				if (LRParser.badPair(isent, i, j)) continue;
+				if (skip != null && skip[i][j]) continue;
+				Arr.softmaxInPlace(probs[i][j]);
+			}
+		}
+
+		// update
+		final double minResidual = LRParser.minResidual;
+		final double learningRate = LRParser.learningRate;
+		for (int kk = 0; kk < sentence.nnz; kk++) {
+			final int i = sentence.i(kk);
+			final int j = sentence.j(kk);
+			if (skip != null && skip[i][j]) continue;
+			final int goldLabelIdx = edgeMatrix[i][j];
+			// manually downweight the NO_EDGE label
+			final double wt = goldLabelIdx == noEdgeIdx ? noedgeW : 1.0;
+			int p = kk * width;
+			for (int label = 0; label < numLabels; label++) {
+				final int numFeats = model.featuresByLabel.get(label).length;
+				int isObserved = goldLabelIdx == label ? 1 : 0;
+				double resid = isObserved - probs[i][j][label];
+				if (Math.abs(resid) < minResidual) {
+					p += numFeats;
+					continue;
+				}
+				double g = wt * resid * sentence.value(kk);
+				for (int q = 0; q < numFeats; q++, p++) {
+					final int f = idxs[p];
+					w[2*f+1] += g*g;
+					final double rate = w[2*f+1] < 1e-2 ? 10.0 : 1.0 / Math.sqrt(w[2*f+1]);
+					w[2*f] += learningRate * rate * g;
+				}
+			}
+		}
+
+		// loglik is completely unnecessary for optimization, just nice for diagnosis.
+		double ll = 0;
+		for (int i=0;i<sentence.T;i++) {
+			for (int j=0; j<sentence.T;j++) {
+				if (LRParser.badPair(isent, i,j)) continue;
+				if (skip != null && skip[i][j]) continue;
+				double wt = edgeMatrix[i][j]==0 ? noedgeW : 1.0;
+				ll += wt * Math.log(probs[i][j][edgeMatrix[i][j]]);
+			}
+		}
+		return ll + logprior;
+	}
+}
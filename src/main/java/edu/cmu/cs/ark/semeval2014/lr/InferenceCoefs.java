@@ -0,0 +1,211 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+
+import java.util.Arrays;
+
+import edu.cmu.cs.ark.semeval2014.lr.MappedFeatureCache.MappedColumn;
+
+/**
+ * Read-only coefs for a loaded model, in place of the dense Model.coefs array.  Indexed by Model.coefIdx() like coefs.
+ * Chosen with -inferenceCoefs (a binary model file is always at least mapped):
+ *
+ *   dense   Model.coefs itself, 4 bytes per coef or hash bucket.  Or with -offHeapCoefs or 2^31+ hash buckets, OffHeapCoefs.
+ *   mapped  a binary model file's coefs, memory-mapped (see BinaryModelFormat).  Off the heap and shared between processes.
+ *   sparse  only the coefs the saved model kept (|w| >= Model.MINIMUM_WEIGHT_THRESHOLD), in an open-addressing hash map
+ *           from coef index to float: 8 bytes per slot, at most MAX_LOAD full.  Pays off when most hash buckets are ~0.
+ *           Indexes are ints, so it's for under 2^31 hash buckets.
+ *   int8    post-training quantized: a signed byte per coef, plus a float scale per -quantBlockSize consecutive coefs.
+ *   int16   same, with a short per coef.
+ */
+abstract class InferenceCoefs {
+	abstract float get(long f);
+	/** how many coefs, including the ones that aren't stored. */
+	abstract long size();
+	/** memory used, for diagnosis. */
+	abstract long bytes();
+
+	static class Mapped extends InferenceCoefs {
+		final MappedColumn column;
+
+		Mapped(MappedColumn column) {
+			this.column = column;
+		}
+
+		@Override
+		float get(long f) {
+			return column.getFloat(f);
+		}
+
+		@Override
+		long size() {
+			return column.numValues;
+		}
+
+		@Override
+		long bytes() {
+			return 4L * column.numValues;  // of the file, not the heap
+		}
+	}
+
+	static class Sparse extends InferenceCoefs {
+		static final int EMPTY = -1;
+		static final double MAX_LOAD = 0.7;
+
+		final long size;
+		int[] keys;
+		float[] vals;
+		int numStored = 0;
+
+		/** checked even without -ea: the loaders cast coef indexes to int for put(), which would silently wrap. */
+		Sparse(long size) {
+			if (size > Integer.MAX_VALUE) {
+				throw new RuntimeException(U.sf("-inferenceCoefs sparse is int-indexed, but this model has %d coefs: use -inferenceCoefs dense, which keeps 2^31 or more off the heap", size));
+			}
+			this.size = size;
+			allocate(1 << 10);
+		}
+
+		void allocate(int capacity) {
+			keys = new int[capacity];
+			Arrays.fill(keys, EMPTY);
+			vals = new float[capacity];
+		}
+
+		@Override
+		float get(long coefIdx) {
+			final int f = (int) coefIdx;
+			final int mask = keys.length - 1;
+			int slot = Model.intHash1(f) & mask;
+			while (true) {
+				int key = keys[slot];
+				if (key == f) return vals[slot];
+				if (key == EMPTY) return 0;
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		/** set coef f, for loading. */
+		void put(int f, float value) {
+			assert f >= 0 && f < size;
+			if (numStored + 1 > MAX_LOAD * keys.length) {
+				grow();
+			}
+			int slot = find(keys, f);
+			if (keys[slot] == EMPTY) {
+				keys[slot] = f;
+				numStored++;
+			}
+			vals[slot] = value;
+		}
+
+		/** the slot holding f, or the empty slot where it would go. */
+		static int find(int[] keys, int f) {
+			final int mask = keys.length - 1;
+			int slot = Model.intHash1(f) & mask;
+			while (keys[slot] != EMPTY && keys[slot] != f) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		void grow() {
+			int[] oldKeys = keys;
+			float[] oldVals = vals;
+			allocate(2 * oldKeys.length);
+			for (int s=0; s<oldKeys.length; s++) {
+				if (oldKeys[s] == EMPTY) continue;
+				int slot = find(keys, oldKeys[s]);
+				keys[slot] = oldKeys[s];
+				vals[slot] = oldVals[s];
+			}
+		}
+
+		@Override
+		long size() {
+			return size;
+		}
+
+		@Override
+		long bytes() {
+			return 8L * keys.length;
+		}
+	}
+
+	/**
+	 * Symmetric linear quantization with a scale per block: coef f is about code[f] * scales[f / blockSize].
+	 * Each block's scale maps its largest |coef| to the largest code, so a block's error is at most half its scale,
+	 * and a few big coefs only cost precision in their own block.  The block size is a power of two, for a shift.
+	 */
+	static class Quantized extends InferenceCoefs {
+		final int bits;
+		final int blockShift;
+		final int size;
+		final float[] scales;
+		/** the codes: q8 for 8 bits, q16 for 16 */
+		final byte[] q8;
+		final short[] q16;
+
+		/** the size is checked even without -ea: past 2^31, the (int) casts below would silently wrap. */
+		Quantized(int bits, int blockSize, long size) {
+			assert bits == 8 || bits == 16;
+			assert Integer.bitCount(blockSize) == 1 : "quantization block size must be a power of two";
+			if (size > Integer.MAX_VALUE) {
+				throw new RuntimeException(U.sf("-inferenceCoefs int%d is int-indexed, but this model has %d coefs: use -inferenceCoefs dense, which keeps 2^31 or more off the heap", bits, size));
+			}
+			this.bits = bits;
+			this.blockShift = Integer.numberOfTrailingZeros(blockSize);
+			this.size = (int) size;
+			scales = new float[(int) ((size + blockSize - 1) >>> blockShift)];
+			q8 = bits == 8 ? new byte[this.size] : null;
+			q16 = bits == 16 ? new short[this.size] : null;
+		}
+
+		int blockSize() {
+			return 1 << blockShift;
+		}
+
+		static int maxCode(int bits) {
+			return bits == 8 ? Byte.MAX_VALUE : Short.MAX_VALUE;
+		}
+
+		/** quantize every coef of m. */
+		static Quantized quantize(Model m, int bits, int blockSize) {
+			Quantized q = new Quantized(bits, blockSize, m.numCoefs());
+			final int maxCode = maxCode(bits);
+			for (int b=0; b < q.scales.length; b++) {
+				final int start = b << q.blockShift;
+				final int end = Math.min(q.size, start + blockSize);
+				float maxAbs = 0;
+				for (int f=start; f<end; f++) {
+					maxAbs = Math.max(maxAbs, Math.abs(m.coef(f)));
+				}
+				if (maxAbs == 0) continue;
+				q.scales[b] = maxAbs / maxCode;
+				for (int f=start; f<end; f++) {
+					int code = Math.round(m.coef(f) / q.scales[b]);
+					code = Math.max(-maxCode, Math.min(maxCode, code));
+					if (bits == 8) q.q8[f] = (byte) code;
+					else q.q16[f] = (short) code;
+				}
+			}
+			return q;
+		}
+
+		@Override
+		float get(long coefIdx) {
+			final int f = (int) coefIdx;
+			return (bits == 8 ? q8[f] : q16[f]) * scales[f >>> blockShift];
+		}
+
+		@Override
+		long size() {
+			return size;
+		}
+
+		@Override
+		long bytes() {
+			return 4L * scales.length + (long) size * bits / 8;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The original feature cache: a sequential stream of Kryo-serialized NumberizedSentences.
+ * uses https://github.com/EsotericSoftware/kryo found from http://stackoverflow.com/questions/239280/which-is-the-best-alternative-for-java-serialization
+ */
+class KryoFeatureCache extends FeatureCache {
+	final String cacheFile;
+	final Kryo kryo = new Kryo();
+	Output kryoOutput;
+	Input kryoInput;
+
+	KryoFeatureCache(String cacheFile) throws FileNotFoundException {
+		this(cacheFile, true);
+	}
+
+	private KryoFeatureCache(String cacheFile, boolean forWriting) throws FileNotFoundException {
+		this.cacheFile = cacheFile;
+		if (forWriting) {
+			kryoOutput = new Output(new FileOutputStream(cacheFile));
+		}
+	}
+
+	/** reopen a finished cache file, e.g. one kept by -persistentCacheDir. */
+	static KryoFeatureCache openForReading(String cacheFile) throws FileNotFoundException {
+		return new KryoFeatureCache(cacheFile, false);
+	}
+
+	@Override
+	void write(NumberizedSentence ns) {
+		kryo.writeObject(kryoOutput, ns);
+	}
+
+	@Override
+	void finishWriting() {
+		kryoOutput.close();
+		kryoOutput = null;
+	}
+
+	@Override
+	void startIteration() throws FileNotFoundException {
+		if (kryoInput != null) {
+			kryoInput.close();
+		}
+		kryoInput = new Input(new FileInputStream(cacheFile));
+	}
+
+	@Override
+	NumberizedSentence next() {
+		return kryo.readObject(kryoInput, NumberizedSentence.class);
+	}
+
+	@Override
+	long sizeInBytes() {
+		return new File(cacheFile).length();
+	}
+
+	@Override
+	void delete() throws IOException {
+		if (kryoInput != null) {
+			kryoInput.close();
+			kryoInput = null;
+		}
+		Files.delete(Paths.get(cacheFile));
+	}
+}
@@ -2,15 +2,13 @@ package edu.cmu.cs.ark.semeval2014.lr;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
 import edu.cmu.cs.ark.semeval2014.ParallelParser;
 import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentence;
 import edu.cmu.cs.ark.semeval2014.lr.fe.*;
 import edu.cmu.cs.ark.semeval2014.prune.Prune;
 import edu.cmu.cs.ark.semeval2014.topness.TopClassifier;
 import edu.cmu.cs.ark.semeval2014.util.GenerateGraphsAndVocab;
+import edu.cmu.cs.ark.semeval2014.util.StageScheduler;
 import edu.cmu.cs.ark.semeval2014.utils.Corpus;
 import sdp.graph.Edge;
 import sdp.graph.Graph;
@@ -21,11 +19,21 @@ import util.misc.Pair;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static edu.cmu.cs.ark.semeval2014.lr.fe.BasicLabelFeatures.*;
 
@@ -58,12 +66,42 @@ public class LRParser {
 
 	static Model model;
 	static float[] ssGrad;  // adagrad history info. parallel to coefs[].
+	/** only under -adagradStorage other than float: the adagrad history, instead of ssGrad. */
+	static AdagradHistory leanHistory;
+	/** only under -fusedKernel: holds the coefs and adagrad history during training, instead of model.coefs and ssGrad. */
+	static FusedAdagrad fused;
+	/** only under -offHeapCoefs: holds the coefs and adagrad history during training, and is the model's coefs. */
+	static OffHeapCoefs offHeap;
+	/** only under -lazyL2: how many of the per-iteration L2 steps have been applied to each coef. parallel to coefs[]. */
+	static int[] l2StepsApplied;
+	/** only under -lazyL2: how many L2 steps every coef is owed, i.e. the number of finished training iterations. */
+	static int l2StepsDue = 0;
+	/** only under -noedgeSampleRate: draws the NOEDGE pairs to train on.  One stream over the whole run, so every iter gets a fresh sample. */
+	static Random noedgeSampler;
+	/** only under -noedgeSampleRate with -trainThreads: each Hogwild worker's own sampler, seeded from noedgeSampler every iter. */
+	static final ThreadLocal<Random> workerNoedgeSampler = new ThreadLocal<>();
+	/** only under -formalisms: for each sentence, the pruning probs that keep every pair some formalism keeps.  Feature extraction uses these. */
+	static double[][] extractionSingletonPredProbs;
+	/** only under -sweep or -formalisms: the side-by-side models, each with its own coefs. */
+	static List<TrainingConfig> trainingConfigs;
+	/** for -shuffle.  Kept in checkpoints, so a resumed run shuffles the same way. */
+	static Random shuffleRandom = new Random();
+	/** the last training iteration's loglik, as reported. */
+	static double lastIterLL = 0;
+	/** as given to main(), for launching -mixWorkers processes with the same options. */
+	static String[] commandLineArgs;
+	/** only under -pipelineFirstPass: iter 0's data loglik, accumulated during the first pass. */
+	static double firstPassLL = 0;
+	/** true during a -pipelineFirstPass first pass without hashing: perceptVocab is still unlocked, and coefs grow with it. */
+	static boolean growingPerceptVocab = false;
 	static Vocabulary labelVocab;
 
 	/** this is the ordering of sentences for the edgeparser training loop. */
     static List<Integer> sentenceIndexOrder;
     
 	static TopClassifier topClassifier = new TopClassifier();
+	/** only under -concurrentStages: the top classifier's training, running on its own thread. */
+	static Future<?> topClassifierStage;
     static Prune preprocessor;
     
     // the threshold for pruning the singletons from the logistic regression model in Prune
@@ -76,26 +114,103 @@ public class LRParser {
 	static int maxEdgeDistance = 10;
 	@Parameter(names="-l2reg")
 	static double l2reg = 0.5;
+	@Parameter(names="-lazyL2", description="Apply each coef's end-of-iteration L2 steps only when it's next touched (or saved), instead of sweeping all coefs every iteration. Same result; the reported ll's logprior lags behind.")
+	static boolean lazyL2 = false;
+	@Parameter(names="-fusedKernel", description="Train with interleaved coef/adagrad-history storage and a fused score+update kernel (FusedAdagrad).  Same result as the default path when -minResidual is 0.")
+	static boolean fusedKernel = false;
+	@Parameter(names="-minResidual", description="With -fusedKernel, skip the update for a label whose residual (observed - predicted prob) is smaller than this in absolute value.  0 = exact.")
+	static double minResidual = 0;
+	@Parameter(names="-adagradStorage", description="How to store the adagrad history.  float: a float per coef.  bf16: 2 bytes per coef.  log8: 1 byte per coef, log scale.  block: a float per -adagradBlockSize coefs.  sparse: a hash map holding only touched coefs, smaller than float only with far more -numHashBuckets than features.  See AdagradHistory.")
+	static String adagradStorage = "float";
+	@Parameter(names="-adagradBlockSize", description="With -adagradStorage block, coefs per shared accumulator.  Defaults to one percept's coefs without hashing, 16 with hashing.")
+	static int adagradBlockSize = -1;
+	@Parameter(names="-offHeapCoefs", description="Keep the coefs and adagrad history in direct memory outside the Java heap, indexed by long, so -numHashBuckets can go past 2^31 and full GCs don't scan them.  Raise -XX:MaxDirectMemorySize to fit.  In test mode, hold a dense model's coefs off-heap too.  See OffHeapCoefs.")
+	static boolean offHeapCoefs = false;
 	@Parameter(names="-noedgeWeight", description="defaults to formalism-specific value")
 	static double noedgeWeight = -1;
-	@Parameter(names="-formalism", required=true)
+	@Parameter(names="-noedgeSampleRate", description="Train on only this fraction of the gold NOEDGE pairs, freshly sampled every iter, with their weight scaled up by 1/rate so the expected gradient is unchanged.  1 = use all of them.")
+	static double noedgeSampleRate = 1;
+	@Parameter(names="-noedgeSampleSeed")
+	static long noedgeSampleSeed = 42;
+	@Parameter(names="-formalism", description="required, unless -formalisms is given")
 	static String formalism;
+	@Parameter(names="-formalisms", description="Train several formalisms' models jointly from one feature extraction pass, e.g. dm,pas,pcedt.  -sdpInput is then a comma-separated list of their training files, in the same order, all over the sentences of -depInput.  Each model is saved as the model file name plus .<formalism>, with a top classifier trained on that formalism's own -depInput.  Each formalism gets its own -use*LabelFeatures, if given.")
+	static String formalisms = null;
 	
 	// 4. Runtime options
 	@Parameter(names="-verboseFeatures")
 	static boolean verboseFeatures = false;
 	@Parameter(names="-useFeatureCache", arity=1)
     static boolean useFeatureCache = true;
+    @Parameter(names="-featureCacheFormat", description="kryo: stream of Kryo-serialized sentences.  mapped: columnar file with a sentence index, read through memory maps without per-sentence allocation.  packed: compressed sentences in RAM up to -featureCacheMemoryMB, the rest spilled to disk.")
+    static String featureCacheFormat = "kryo";
+    @Parameter(names="-featureCacheMemoryMB", description="heap budget for -featureCacheFormat packed")
+    static double featureCacheMemoryMB = 2000;
+    @Parameter(names="-persistentCacheDir", description="Keep feature caches here after training, keyed by a hash of the input, extractors, and options they depend on, and reuse a matching one instead of extracting.  kryo and mapped formats only.")
+    static String persistentCacheDir = null;
+    @Parameter(names="-persistentCacheMaxGB", description="Disk budget for -persistentCacheDir; least recently used caches are evicted past it.")
+    static double persistentCacheMaxGB = 50;
     @Parameter(names="-saveEvery")
     static int saveEvery = 10;  // -1 to disable intermediate model saves
+    @Parameter(names="-asyncSave", description="Write the -saveEvery models on a background thread, from a snapshot of the coefs, while training continues.  Each is fsync'd and renamed into place when complete.")
+    static boolean asyncSave = false;
+    @Parameter(names="-maxPendingSaves", description="With -asyncSave, how many snapshots can wait to be written before a save blocks training.  Each takes a copy of the coefs' memory.")
+    static int maxPendingSaves = 1;
+    @Parameter(names="-modelFormat", description="Format of the saved models.  text: one line per nonzero coef.  binary: vocab header plus a raw float block that test mode memory-maps instead of parsing.  Test mode reads either.  See BinaryModelFormat.")
+    static String modelFormat = "text";
+    @Parameter(names="-inferenceCoefs", description="How test mode holds the loaded coefs.  dense: a float per coef or hash bucket (a binary model is mapped instead).  sparse: a hash map of just the saved nonzero coefs.  int8, int16: quantized, with a scale per -quantBlockSize coefs.  See InferenceCoefs.")
+    static String inferenceCoefs = "dense";
+    @Parameter(names="-quantBlockSize", description="With -inferenceCoefs int8 or int16, how many consecutive coefs share a scale.  A power of two.")
+    static int quantBlockSize = 64;
+    @Parameter(names="-compileScores", description="In test mode, precompute each percept's score for every label, so scoring a nonzero is one row lookup.  Under hashing, rows are computed on demand into a per-thread cache of -compiledCacheRows.  See CompiledScores.")
+    static boolean compileScores = false;
+    @Parameter(names="-compiledCacheRows", description="With -compileScores under hashing, how many percept rows each decoding thread caches.  A power of two.")
+    static int compiledCacheRows = 1 << 16;
     @Parameter(names="-numIters")
 	static int numIters = 30;
-    @Parameter(names="-shuffle", description="Randomly shuffle the training data -- note that with feature cache, it will use same order every iter.")
+    @Parameter(names="-checkpointEvery", description="Every this many iters, write a resumable checkpoint (coefs, adagrad history, next iter, sentence order, random state) to the model file name plus .checkpoint.  -1 = never.")
+    static int checkpointEvery = -1;
+    @Parameter(names="-resumeFrom", description="Continue training from this -checkpointEvery checkpoint, with the same options (-numIters may be raised).  The preprocessing models are loaded from -model instead of retrained.")
+    static String resumeFrom = null;
+    @Parameter(names="-devSdp", description="Gold graphs for a dev set.  With -devDeps, the dev set is decoded and scored (labeled F1 over edges) after every iter, training stops once it hasn't improved for -devPatience iters, and only the best iter's model is saved.")
+    static String devSdpFile = null;
+    @Parameter(names="-devDeps", description="The dev set's dependency input, like -depInput.  Goes with -devSdp.")
+    static String devDepFile = null;
+    @Parameter(names="-devPatience", description="With -devSdp, stop after this many iters without a dev F1 improvement.")
+    static int devPatience = 3;
+    @Parameter(names="-shuffle", description="Randomly shuffle the training data, with a fresh order every iter.  Needs a random-access feature cache (mapped, or packed without spilling) or no cache; with the kryo cache, it will use same order every iter.")
     static boolean shuffle=false;
+    @Parameter(names="-shuffleBlockSize", description="With -shuffle, shuffle blocks of this many consecutive cached sentences, reading each block in order.  Keeps cache reads mostly sequential when the cache doesn't fit in the page cache.")
+    static int shuffleBlockSize = 1;
+    @Parameter(names="-trainThreads", description="Number of Hogwild (lock-free, shared-weights) training threads. 1 = single-threaded and bit-reproducible.")
+    static int trainThreads = 1;
+    @Parameter(names="-prefetch", description="Read (or extract) up to this many upcoming training examples on a background thread.  0 = no prefetching.")
+    static int prefetch = 0;
+    @Parameter(names="-pipelineFirstPass", description="Train iter 0 on each sentence as soon as the first pass has extracted and cached it, instead of running a separate extraction-only pass.  Iter 0 is then single-threaded.")
+    static boolean pipelineFirstPass = false;
+    @Parameter(names="-streamWindow", description="Stream the training data: every iter, read -depInput and -sdpInput this many sentences at a time, instead of holding them all in memory.  The preprocessing models are trained on the first window.  Needs -useHashing and -useFeatureCache false.  0 = load everything up front.")
+    static int streamWindow = 0;
+    @Parameter(names="-concurrentStages", description="Train the independent preprocessing stages on separate threads: the top classifier alongside everything else, and the three Prune models alongside each other.  Edge model training starts once the Prune predictions are in.")
+    static boolean concurrentStages = false;
+    @Parameter(names="-feThreads", description="Number of threads for the first-pass feature extraction. The cache is still written in sentenceIndexOrder by one writer.")
+    static int feThreads = 1;
+    
+    @Parameter(names="-sweep", description="Train one model per point of a hyperparameter grid, side by side over a single feature extraction pass, e.g. \"l2reg=0.1,0.5,1;learningRate=0.05,0.1\".  Sweepable: l2reg, learningRate, noedgeWeight.  Each model is saved as the model file name plus .<setting>, with copies of the preprocessing models.")
+    static String sweep = null;
+    @Parameter(names="-mixWorkers", description="Train with iterative parameter mixing: launch this many worker processes, each training on a shard of the sentences, and average their coefs and adagrad history after every iter.  Needs -useHashing.  0 = train in this process.")
+    static int mixWorkers = 0;
+    @Parameter(names="-mixDir", description="Where -mixWorkers processes exchange their parameters and write their logs.  Defaults to the model file name plus .mix")
+    static String mixDir = null;
+    @Parameter(names="-mixClasspath", description="Classpath for the -mixWorkers processes.  Defaults to this process's classpath plus whatever its class loaders were given, which covers sbt run-main without fork.  If the workers still can't find classes, run \"sbt assembly\" and give the assembly jar here.")
+    static String mixClasspath = null;
+    @Parameter(names="-mixWorkerId", hidden=true, description="internal: set by the -mixWorkers coordinator on the processes it launches")
+    static int mixWorkerId = -1;
+    @Parameter(names="-mixCoordinatorPid", hidden=true, description="internal: set by the -mixWorkers coordinator on the processes it launches, so they can quit if it dies.  -1 = unknown")
+    static int mixCoordinatorPid = -1;
     
     @Parameter(names="-useHashing", description="only specify this when training. at testtime, whether it's a hash-based model is detected from the model file.")
     static boolean useHashing = false;
-    @Parameter(names="-numHashBuckets", description="only specify this when training. at testtime, this is read from the model file.  ---  Note mem usage is 4 times higher than this, so maybe use 1e9 on a server?")
+    @Parameter(names="-numHashBuckets", description="only specify this when training. at testtime, this is read from the model file.  ---  Note mem usage is 8 times higher than this when training, so maybe use 1e9 on a server?  2^31 or more needs -offHeapCoefs.")
     static double numHashBuckets = 100e6;
 
 	// label feature flags
@@ -112,37 +227,104 @@ public class LRParser {
 	static String modelFile;
     @Parameter(names={"-sdpInput","-sdpOutput"}, required=true)
     static String sdpFile;
-    @Parameter(names="-depInput", required=true)
+    @Parameter(names="-depInput", required=true, description="Under -formalisms, one file per formalism, comma-separated like -sdpInput.  Features are extracted from the first; each formalism's top classifier is trained on its own.")
 	static String depFile;
     
-    static long numPairs = 0, numTokens = 0, numTokenPrunes = 0, numCorrectTokenPrunes = 0; // purely for diagnosis
+    /** the -depInput file that features are extracted from.  Under -formalisms, -depInput lists one per formalism, and it's the first. */
+    static String featureDepFile() {
+    	return formalisms != null ? depFile.split(",")[0] : depFile;
+    }
+
+    static long numTokens = 0, numTokenPrunes = 0, numCorrectTokenPrunes = 0; // purely for diagnosis
+    static final AtomicLong numPairs = new AtomicLong(); // purely for diagnosis; atomic since extraction can be multithreaded
 
     static void validateParameters() {
     	assert numHashBuckets > 0 : "must have positive number of hashbuckets";
-    	assert numHashBuckets < Integer.MAX_VALUE : "numhashbuckets must be a signed 4byte integer, so less than 2 billion or so";
+    	assert numHashBuckets < Integer.MAX_VALUE || offHeapCoefs : "past 2^31 hash buckets, coefs don't fit in an array: use -offHeapCoefs";
 		assert mode.equals("train") || mode.equals("test") : "Need to say either train or test mode.";
-		assert formalism.equals("pas") || formalism.equals("dm") || formalism.equals("pcedt");
+		assert formalism != null || formalisms != null : "-formalism is required, unless -formalisms is given";
+		for (String f : (formalisms != null ? formalisms : formalism).split(",")) {
+			assert f.equals("pas") || f.equals("dm") || f.equals("pcedt") : "unknown formalism " + f;
+		}
+		assert formalisms == null || mode.equals("train") : "-formalisms is only for training";
+		assert formalisms == null || (sweep == null && trainThreads == 1 && mixWorkers == 0) : "-formalisms trains its models side by side in one thread";
+		assert formalisms == null || depFile.split(",").length == formalisms.split(",").length : "-formalisms needs one -depInput file per formalism, comma-separated, to train its top classifier on";
+		assert trainThreads >= 1 : "need at least one training thread";
+		assert shuffleBlockSize >= 1 : "shuffle block size must be positive";
+		assert prefetch >= 0;
+		assert !pipelineFirstPass || useFeatureCache : "-pipelineFirstPass only makes sense with the feature cache";
+		assert feThreads >= 1 : "need at least one feature extraction thread";
+		assert noedgeSampleRate > 0 && noedgeSampleRate <= 1 : "-noedgeSampleRate must be in (0,1]";
+		assert sweep == null || (trainThreads == 1 && mixWorkers == 0) : "-sweep trains its models side by side in one thread";
+		assert persistentCacheDir == null || (useFeatureCache && ! featureCacheFormat.equals("packed")) : "-persistentCacheDir needs the kryo or mapped feature cache";
+		assert mixWorkers >= 0;
+		assert mixWorkers == 0 || useHashing : "-mixWorkers needs -useHashing, so all workers index coefs the same way";
+		assert minResidual >= 0;
+		assert (devSdpFile == null) == (devDepFile == null) : "-devSdp and -devDeps go together";
+		assert devSdpFile == null || (sweep == null && formalisms == null && mixWorkers == 0) : "-devSdp early stopping is only for a single model trained in this process";
+		assert devPatience >= 1;
+		assert maxPendingSaves >= 1;
+		assert modelFormat.equals("text") || modelFormat.equals("binary") : "unknown -modelFormat";
+		assert modelFormat.equals("text") || ! modelFile.endsWith(".gz") : "binary models are memory-mapped, so can't be gzipped";
+		assert Arrays.asList("dense", "sparse", "int8", "int16").contains(inferenceCoefs) : "unknown -inferenceCoefs";
+		assert quantBlockSize > 0 && Integer.bitCount(quantBlockSize) == 1 : "-quantBlockSize must be a power of two";
+		assert compiledCacheRows > 0 && Integer.bitCount(compiledCacheRows) == 1 : "-compiledCacheRows must be a power of two";
+		assert Arrays.asList("float", "bf16", "log8", "block", "sparse").contains(adagradStorage) : "unknown -adagradStorage";
+		assert adagradStorage.equals("float") || ! (fusedKernel || mixWorkers > 0 || checkpointEvery > 0 || resumeFrom != null) : "-adagradStorage other than float doesn't work with -fusedKernel, -mixWorkers, or checkpoints";
+		assert ! adagradStorage.equals("sparse") || trainThreads == 1 : "-adagradStorage sparse is single-threaded";
+		assert ! offHeapCoefs || mode.equals("test") || (useHashing && ! fusedKernel && ! lazyL2 && adagradStorage.equals("float") && ! asyncSave) : "-offHeapCoefs training needs -useHashing, and doesn't work with -fusedKernel, -lazyL2, -adagradStorage, or -asyncSave";
+		assert ! offHeapCoefs || mode.equals("test") || (sweep == null && formalisms == null && mixWorkers == 0 && devSdpFile == null && checkpointEvery < 0 && resumeFrom == null) : "-offHeapCoefs trains a single model in this process, without dev early stopping or checkpoints";
+		assert ! offHeapCoefs || inferenceCoefs.equals("dense") : "-offHeapCoefs and -inferenceCoefs other than dense are alternatives";
+		assert streamWindow >= 0;
+		assert (checkpointEvery < 0 && resumeFrom == null) || (mode.equals("train") && sweep == null && formalisms == null && mixWorkers == 0 && streamWindow == 0) : "checkpoints are only for a single model trained in this process";
+		assert streamWindow == 0 || (mode.equals("train") && useHashing && ! useFeatureCache) : "-streamWindow extracts features on the fly every iter, so needs -useHashing and -useFeatureCache false";
+		assert streamWindow == 0 || (sweep == null && formalisms == null && mixWorkers == 0) : "-streamWindow trains a single model in this process";
+		assert minResidual == 0 || fusedKernel : "-minResidual needs -fusedKernel";
+		assert ! fusedKernel || ! useHashing || numHashBuckets < FusedAdagrad.MAX_COEFS : "-fusedKernel keeps 2 floats per coef in one array, so needs -numHashBuckets below 2^30";
+		assert featureCacheFormat.equals("kryo") || featureCacheFormat.equals("mapped") || featureCacheFormat.equals("packed") : "unknown feature cache format";
     }
     
     public static void main(String[] args) throws IOException {
 		new JCommander(new LRParser(), args);  // seems to write to the static members.
+		commandLineArgs = args;
 		validateParameters();
+		if (mixDir == null) mixDir = modelFile + ".mix";
 		setDefaultNoedgeWeights();
 
+		if (mode.equals("train") && streamWindow > 0) {
+			// StreamingTrainer reads the data a window at a time
+			trainModel();
+			return;
+		}
+
 		// Data loading
-		inputSentences = Corpus.getInputAnnotatedSentences(depFile);
+		inputSentences = Corpus.getInputAnnotatedSentences(featureDepFile());
 		U.pf("%d input sentences\n", inputSentences.length);
 		setSentenceIndexOrder();
 
 		preprocessor = new Prune(inputSentences, modelFile);
 		
 		if (mode.equals("train")) {
-			topClassifier.train(depFile, modelFile + ".topmodel");
+			if (resumeFrom != null) {
+				topClassifier.loadModel(modelFile + ".topmodel");
+			}
+			else if (formalisms == null && ! ParameterMixing.isWorker()) {
+				// under -formalisms, each formalism's top classifier is trained on its own -depInput; see setUpJointFormalisms()
+				trainTopClassifier(new Runnable() {
+					@Override
+					public void run() {
+						topClassifier.train(depFile, modelFile + ".topmodel");
+					}
+				});
+			}
 			trainModel();
 		}
 		else if (mode.equals("test")) {
 			topClassifier.loadModel(modelFile + ".topmodel");
 			model = Model.load(modelFile);
+			if (compileScores) {
+				model.compiled = CompiledScores.compile(model);
+			}
 			preprocessInputSentences();
 			U.pf("Writing predictions to %s\n", sdpFile);
 			double t0, dur;
@@ -162,61 +344,202 @@ public class LRParser {
 		diagnosePruning();
 	}
 	
+	/** run the given top classifier training, or under -concurrentStages, start it on its own thread.  See awaitTopClassifier(). */
+	static void trainTopClassifier(Runnable training) {
+		if (concurrentStages) {
+			topClassifierStage = StageScheduler.start("top classifier", training);
+		}
+		else {
+			training.run();
+		}
+	}
+
+	/** edge model training doesn't need the top classifier; only decoding and the final model files do. */
+	static void awaitTopClassifier() {
+		if (topClassifierStage != null) {
+			StageScheduler.await(topClassifierStage);
+			topClassifierStage = null;
+		}
+	}
+
 	static void setDefaultNoedgeWeights() {
+		if (formalisms != null) return;  // per formalism, see setUpJointFormalisms()
 		if (noedgeWeight == -1) {
-			noedgeWeight = 
-					formalism.equals("pas") ? 0.4 :
-					formalism.equals("dm") ? 0.3 :
-					formalism.equals("pcedt") ? 0.3 :
-					-1;
-				assert noedgeWeight != -1;
+			noedgeWeight = defaultNoedgeWeight(formalism);
 		}
 		U.pf("Set noedgeWeight = %s\n", noedgeWeight);
 	}
 
+	static double defaultNoedgeWeight(String formalism) {
+		double w =
+				formalism.equals("pas") ? 0.4 :
+				formalism.equals("dm") ? 0.3 :
+				formalism.equals("pcedt") ? 0.3 :
+				-1;
+		assert w != -1;
+		return w;
+	}
+
 	private static Model trainModel() throws IOException {
 		double t0;
 		double dur;
 		
-		U.pf("Reading graphs from %s\n", sdpFile);
-		
-		GenerateGraphsAndVocab generateGAndV = new GenerateGraphsAndVocab(sdpFile);
-		graphMatrices = generateGAndV.getGraphMatrices();
-		labelVocab = generateGAndV.getLabelVocab();
-		
-		assert graphMatrices.size() == inputSentences.length;
-		
-		// Preprocessor training & prediction ... its predictions will be used as semparser features.
-		// Note that its predictions are stored in the inputSentences.
-		preprocessor.trainModels(labelVocab, graphMatrices);
-		preprocessor.predictIntoInputs();
-		// To print out the precision / recall / F1, place this call:
-		//preprocessor.predictAndPrintPrecisionAndRecall(graphMatrices, labelVocab);
+		if (formalisms != null) {
+			trainingConfigs = setUpJointFormalisms();
+			trainingConfigs.get(0).activate();
+		}
+		else {
+			if (streamWindow > 0) {
+				labelVocab = StreamingTrainer.setUp();
+			}
+			else {
+				U.pf("Reading graphs from %s\n", sdpFile);
+			
+				GenerateGraphsAndVocab generateGAndV = new GenerateGraphsAndVocab(sdpFile);
+				graphMatrices = generateGAndV.getGraphMatrices();
+				labelVocab = generateGAndV.getLabelVocab();
+			
+				assert graphMatrices.size() == inputSentences.length;
+			
+				// Preprocessor training & prediction ... its predictions will be used as semparser features.
+				// Note that its predictions are stored in the inputSentences.
+				if (ParameterMixing.isWorker() || resumeFrom != null) {
+					// the -mixWorkers coordinator, or the run being resumed, has trained and saved these already
+					preprocessor.loadModels();
+				}
+				else {
+					preprocessor.trainModels(labelVocab, graphMatrices, concurrentStages);
+				}
+				preprocessor.predictIntoInputs();
+				// To print out the precision / recall / F1, place this call:
+				//preprocessor.predictAndPrintPrecisionAndRecall(graphMatrices, labelVocab);
+			}
 		
-		// build up label feature vocab
-		initializeLabelFeatureExtractors();
-		final Pair<Vocabulary, List<int[]>> vocabAndFeatsByLabel =
-				extractAllLabelFeatures(labelVocab, labelFeatureExtractors);
-		final Vocabulary labelFeatureVocab = vocabAndFeatsByLabel.first;
-		final List<int[]> featuresByLabel = vocabAndFeatsByLabel.second;
-
-		// Train the edge-based semparser.
-		final Vocabulary perceptVocab = new Vocabulary();
-		perceptVocab.num(BIAS_NAME);
-		model = new Model(labelVocab, labelFeatureVocab, featuresByLabel, perceptVocab);
+			// build up label feature vocab
+			initializeLabelFeatureExtractors();
+			final Pair<Vocabulary, List<int[]>> vocabAndFeatsByLabel =
+					extractAllLabelFeatures(labelVocab, labelFeatureExtractors);
+			final Vocabulary labelFeatureVocab = vocabAndFeatsByLabel.first;
+			final List<int[]> featuresByLabel = vocabAndFeatsByLabel.second;
+
+			// Train the edge-based semparser.
+			final Vocabulary perceptVocab = new Vocabulary();
+			perceptVocab.num(BIAS_NAME);
+			model = new Model(labelVocab, labelFeatureVocab, featuresByLabel, perceptVocab);
+		}
+		if (noedgeSampleRate < 1) {
+			U.pf("Training on %.3f of the NOEDGE pairs per iter, at weight %s\n", noedgeSampleRate, noedgeTrainWeight());
+			noedgeSampler = new Random(noedgeSampleSeed);
+		}
+		if (sweep != null) {
+			trainingConfigs = TrainingConfig.parseGrid(sweep);
+			U.pf("Sweep: training %d models side by side\n", trainingConfigs.size());
+		}
+		if (devSdpFile != null) {
+			DevEvaluator.load();
+		}
 		
 
 		t0 = System.currentTimeMillis();
-		trainingOuterLoopOnline();
+		if (mixWorkers > 0 && ! ParameterMixing.isWorker()) {
+			ParameterMixing.coordinate(commandLineArgs);
+		}
+		else if (streamWindow > 0) {
+			StreamingTrainer.trainingOuterLoop();
+		}
+		else {
+			trainingOuterLoopOnline();
+		}
 		dur = System.currentTimeMillis() - t0;
 		U.pf("TRAINLOOP TIME %.1f sec\n", dur/1e3);
+		AsyncModelSaver.finish();
+		awaitTopClassifier();
 
-		model.save(modelFile);
-		if (useFeatureCache)
-			Files.delete(Paths.get(featureCacheFile));
+		if (formalisms != null) {
+			// each formalism's preprocessor and top models were saved under its own name already
+			saveAllModels(modelFile);
+		}
+		else if (trainingConfigs != null) {
+			saveAllModels(modelFile);
+			for (TrainingConfig c : trainingConfigs) {
+				copyPreprocessingModels(modelFile + "." + c.name);
+			}
+		}
+		else if (devSdpFile != null) {
+			DevEvaluator.saveBest(modelFile);
+		}
+		else if ( ! ParameterMixing.isWorker()) {
+			saveModel(modelFile);
+		}
+		if (persistentCacheDir != null && featureCache != null) {
+			PersistentFeatureCache.evict();
+		}
+		else if (featureCache != null)
+			featureCache.delete();
 		return model;
 	}
 
+	/**
+	 * -formalisms: read each formalism's graphs, train its preprocessor and keep its pruning predictions, and set up its model.
+	 * The models share one percept vocab, so one feature cache serves them all.  It's extracted over every pair that some
+	 * formalism's pruning keeps; during training, each formalism skips the pairs its own pruning drops.
+	 * The formalisms' tops differ, so each gets its own top classifier, trained on its own -depInput file.
+	 */
+	static List<TrainingConfig> setUpJointFormalisms() throws IOException {
+		final String[] names = formalisms.split(",");
+		final String[] sdpFiles = sdpFile.split(",");
+		final String[] depFiles = depFile.split(",");
+		assert names.length == sdpFiles.length : "-formalisms needs one -sdpInput file per formalism, comma-separated";
+		final Vocabulary perceptVocab = new Vocabulary();
+		perceptVocab.num(BIAS_NAME);
+		extractionSingletonPredProbs = new double[inputSentences.length][];
+		List<TrainingConfig> configs = new ArrayList<>();
+		for (int k=0; k<names.length; k++) {
+			TrainingConfig c = new TrainingConfig(names[k]);
+			U.pf("Reading %s graphs from %s\n", names[k], sdpFiles[k]);
+			GenerateGraphsAndVocab generateGAndV = new GenerateGraphsAndVocab(sdpFiles[k]);
+			c.graphMatrices = generateGAndV.getGraphMatrices();
+			Vocabulary formalismLabelVocab = generateGAndV.getLabelVocab();
+			assert c.graphMatrices.size() == inputSentences.length : names[k] + " graphs don't line up with the -depInput sentences";
+
+			Prune formalismPreprocessor = new Prune(inputSentences, modelFile + "." + names[k]);
+			formalismPreprocessor.trainModels(formalismLabelVocab, c.graphMatrices, concurrentStages);
+			formalismPreprocessor.predictIntoInputs();
+			c.singletonPredProbs = new double[inputSentences.length][];
+			for (int snum=0; snum<inputSentences.length; snum++) {
+				double[] probs = inputSentences[snum].singletonPredProbs.clone();
+				c.singletonPredProbs[snum] = probs;
+				// a token is pruned for extraction only if every formalism prunes it
+				double[] union = extractionSingletonPredProbs[snum];
+				if (union == null) {
+					extractionSingletonPredProbs[snum] = probs.clone();
+				}
+				else {
+					for (int t=0; t<union.length; t++) union[t] = Math.min(union[t], probs[t]);
+				}
+			}
+
+			final Pair<Vocabulary, List<int[]>> vocabAndFeatsByLabel =
+					extractAllLabelFeatures(formalismLabelVocab, labelFeatureExtractorsFor(names[k]));
+			c.model = new Model(formalismLabelVocab, vocabAndFeatsByLabel.first, vocabAndFeatsByLabel.second, perceptVocab);
+			c.noedgeWeight = noedgeWeight != -1 ? noedgeWeight : defaultNoedgeWeight(names[k]);
+			U.pf("%s: %d labels, noedgeWeight = %s\n", names[k], formalismLabelVocab.size(), c.noedgeWeight);
+			configs.add(c);
+		}
+		for (int snum=0; snum<inputSentences.length; snum++) {
+			inputSentences[snum].singletonPredProbs = extractionSingletonPredProbs[snum];
+		}
+		trainTopClassifier(new Runnable() {
+			@Override
+			public void run() {
+				for (int k=0; k<names.length; k++) {
+					new TopClassifier().train(depFiles[k], modelFile + "." + names[k] + ".topmodel");
+				}
+			}
+		});
+		return configs;
+	}
+
 	private static Pair<Vocabulary, List<int[]>> extractAllLabelFeatures(
 			Vocabulary labelVocab,
 			List<FE.LabelFE> labelFeatureExtractors)
@@ -272,6 +595,7 @@ public class LRParser {
 	static class TokenFeatAdder extends FE.FeatureAdder {
 		int i=-1;
 		NumberizedSentence ns;
+		Vocabulary perceptVocab;
 		InputAnnotatedSentence is;
 
 		@Override
@@ -288,7 +612,7 @@ public class LRParser {
 			int featnum;
 			
 			ff = U.sf("%s::ashead", featname);
-			featnum = perceptNum(ff);
+			featnum = perceptNum(perceptVocab, ff);
 			if (LRParser.useHashing || featnum!=-1) {
 				for (int j=0; j<ns.T; j++) {
 					if (badPair(is, i,j)) continue;
@@ -297,7 +621,7 @@ public class LRParser {
 			}
 			
 			ff = U.sf("%s::aschild", featname);
-			featnum = perceptNum(ff);
+			featnum = perceptNum(perceptVocab, ff);
 			if (LRParser.useHashing || featnum!=-1) {
 				for (int j=0; j<ns.T; j++) {
 					if (badPair(is, j,i)) continue;
@@ -308,9 +632,9 @@ public class LRParser {
 	}
 	
 	/** under hashing, this could be a negative number. */
-	static int perceptNum(String perceptName) {
+	static int perceptNum(Vocabulary perceptVocab, String perceptName) {
 		if ( ! LRParser.useHashing) {
-			return model.perceptVocab.num(perceptName);
+			return perceptVocab.num(perceptName);
 		}
 		else {
 //			return perceptName.hashCode();
@@ -322,13 +646,14 @@ public class LRParser {
 	static class EdgeFeatAdder extends FE.FeatureAdder {
 		int i=-1, j=-1;
 		NumberizedSentence ns;
+		Vocabulary perceptVocab;
 		// these are only for debugging
 		InputAnnotatedSentence is;
 		int[][] goldEdgeMatrix;
 
 		@Override
 		public void add(String featname, double value) {
-			int perceptnum = perceptNum(featname);
+			int perceptnum = perceptNum(perceptVocab, featname);
 			if (perceptnum==-1) return;
 			
 			ns.add(i,j, perceptnum, value);
@@ -345,12 +670,22 @@ public class LRParser {
 	 * goldEdgeMatrix is only for feature extractor debugging verbose reports 
 	 */
 	public static NumberizedSentence extractFeatures(Model model, InputAnnotatedSentence is, int[][] goldEdgeMatrix) {
-		final int biasIdx = model.perceptVocab.num(BIAS_NAME);
+		return extractFeatures(model, model.perceptVocab, is, goldEdgeMatrix);
+	}
+
+	/**
+	 * perceptVocab is where percept names get numberized.  Normally it's model.perceptVocab, but
+	 * parallel feature extraction passes in a private per-sentence vocab (see featureExtractionPassParallel).
+	 */
+	static NumberizedSentence extractFeatures(Model model, Vocabulary perceptVocab, InputAnnotatedSentence is, int[][] goldEdgeMatrix) {
+		final int biasIdx = perceptVocab.num(BIAS_NAME);
+		long sentNumPairs = 0;
 
 		NumberizedSentence ns = new NumberizedSentence( is.size() );
 		TokenFeatAdder tokenAdder = new TokenFeatAdder();
 		EdgeFeatAdder edgeAdder = new EdgeFeatAdder();
 		tokenAdder.ns=edgeAdder.ns=ns;
+		tokenAdder.perceptVocab=edgeAdder.perceptVocab=perceptVocab;
 		
 		// only for verbose feature extraction reporting
 		tokenAdder.is = edgeAdder.is=is;
@@ -373,7 +708,7 @@ public class LRParser {
 			}
 			for (edgeAdder.j=0; edgeAdder.j<ns.T; edgeAdder.j++) {
 				if (badPair(is, edgeAdder.i,edgeAdder.j)) continue;
-				numPairs++;
+				sentNumPairs++;
 				
 				// bias term
 				ns.add(edgeAdder.i, edgeAdder.j, biasIdx, 1.0);
@@ -386,6 +721,7 @@ public class LRParser {
 				}
 			}
 		}
+		numPairs.addAndGet(sentNumPairs);
 		return ns;
 	}
 	
@@ -394,43 +730,174 @@ public class LRParser {
 	}
 
     static void trainingOuterLoopOnline() throws IOException {
-    	
+    	int firstIter = 0;
+    	Checkpoint resume = null;
+    	if (resumeFrom != null) {
+    		resume = Checkpoint.read(resumeFrom);
+    		// redo the first pass in the same order, so the percept vocab and cache come out the same
+    		sentenceIndexOrder = resume.firstPassOrder;
+    	}
     	if (useFeatureCache) {
-        	U.pf("First pass: extracting features, no model updates.\n");
-    		cacheReadMode = false;
-    		openCacheForWriting();
-        	featureExtractionPass();
-    		closeCacheAfterWriting();
-        	allocateCoefs();
+    		boolean pipelined = pipelineFirstPass && resume == null;
+    		double t0 = System.currentTimeMillis();
+    		if (persistentCacheDir != null && reusePersistentCache()) {
+    			pipelined = false;
+    			allocateAllCoefs();
+    		}
+    		else {
+    			if (pipelined) {
+    				U.pf("First pass: extracting features, and training iter 0 on each sentence as soon as it's extracted.\n");
+    				// without hashing, the percept vocab (and so coefs) keeps growing through this pass.
+    				growingPerceptVocab = ! useHashing;
+    				allocateAllCoefs();
+    				firstPassLL = 0;
+    			}
+    			else {
+    				U.pf("First pass: extracting features, no model updates.\n");
+    			}
+    			cacheReadMode = false;
+    			openCacheForWriting();
+    	    	featureExtractionPass();
+    			closeCacheAfterWriting();
+    			if (pipelined) {
+    				if (growingPerceptVocab) {
+    					resizeAllCoefs();
+    					model.perceptVocab.lock();
+    					growingPerceptVocab = false;
+    				}
+    			}
+    			else {
+    				allocateAllCoefs();
+    			}
+    		}
             U.pf("\n");
-            U.pf("%d sentences, %d tokens, %.2f tokens/sent, %d pairs (candidate edges), %.2f pairs/sent\n", inputSentences.length, numTokens, numTokens*1.0/inputSentences.length, numPairs, numPairs*1.0/inputSentences.length);
+            U.pf("%d sentences, %d tokens, %.2f tokens/sent, %d pairs (candidate edges), %.2f pairs/sent\n", inputSentences.length, numTokens, numTokens*1.0/inputSentences.length, numPairs.get(), numPairs.get()*1.0/inputSentences.length);
     		U.pf("%d percepts, %d nnz\n", model.perceptVocab.size(), NumberizedSentence.totalNNZ);
     		cacheReadMode = true;
+    		if (featureCache.supportsRandomAccess()) {
+    			recordCachePositions();
+    		}
+    		else if (shuffle) {
+    			U.pf("The %s feature cache can only be read in order, so every iter will use the same shuffled order.\n", featureCacheFormat);
+    		}
+    		if (pipelined) {
+    			U.pf("iter %3d ", 0);
+    			finishTrainOnlineIter(firstPassLL);
+    			if (finishOuterIter(0, t0)) return;
+    			firstIter = 1;
+    		}
     	}
     	else if (useHashing) {
-    		allocateCoefs();
+    		allocateAllCoefs();
     	}
     	else {
     		assert false : "bad option combination";
     	}
+    	if (resume != null) {
+    		resume.restore();
+    		firstIter = resume.nextIter;
+    	}
 		
-    	for (int outer=0; outer<numIters; outer++) {
+    	for (int outer=firstIter; outer<numIters; outer++) {
     		U.pf("iter %3d ", outer);  System.out.flush();
     		double t0 = System.currentTimeMillis();
     		
+    		if (shuffle && outer > 0 && ( ! useFeatureCache || cachePositions != null)) {
+    			reshuffleSentenceIndexOrder();
+    		}
 			resetCacheReader();
     		trainOnlineIter();
-    		
-        	double dur = System.currentTimeMillis() - t0;
-        	U.pf(" %.1f sec, %.1f ms/sent\n", dur/1000, dur/inputSentences.length);
-    		
-        	if (saveEvery >= 0 && outer % saveEvery == 0)
-        		model.save(U.sf("%s.iter%s", modelFile, outer));
-    		
+    		if (finishOuterIter(outer, t0)) break;
+    	}
+    }
+
+    /** returns whether to stop training early. */
+    static boolean finishOuterIter(int outer, double t0) throws IOException {
+    	double dur = System.currentTimeMillis() - t0;
+    	int n = streamWindow > 0 ? StreamingTrainer.numSentences : sentenceIndexOrder.size();
+    	U.pf(" %.1f sec, %.1f ms/sent, %.1f sents/sec\n", dur/1000, dur/n, n/(dur/1000));
+		
+    	boolean stop = false;
+    	if (ParameterMixing.isWorker()) {
+    		ParameterMixing.workerExchange(outer, lastIterLL);
+    	}
+    	else if (devSdpFile != null) {
+    		// only the best iter's model is kept
+    		stop = DevEvaluator.evaluateAfterIter(outer);
+    	}
+    	else if (saveEvery >= 0 && outer % saveEvery == 0) {
+    		saveAllModels(U.sf("%s.iter%s", modelFile, outer), asyncSave);
+    	}
+    	if (checkpointEvery > 0 && outer % checkpointEvery == 0 && ! stop) {
+    		Checkpoint.write(outer);
+    	}
+    	return stop;
+    }
+
+    /** allocateCoefs(), or under -sweep, for every config. */
+    static void allocateAllCoefs() {
+    	if (trainingConfigs == null) {
+    		allocateCoefs();
+    		return;
+    	}
+    	for (TrainingConfig c : trainingConfigs) {
+    		c.activate();
+    		allocateCoefs();
+    		c.deactivate();
+    	}
+    }
+
+    /** resizeCoefs() to the final percept vocab, or under -sweep/-formalisms, for every config. */
+    static void resizeAllCoefs() {
+    	if (trainingConfigs == null) {
+    		resizeCoefs(model.perceptVocab.size() * model.labelFeatureVocab.size());
+    		return;
+    	}
+    	for (TrainingConfig c : trainingConfigs) {
+    		c.activate();
+    		resizeCoefs(model.perceptVocab.size() * model.labelFeatureVocab.size());
+    		c.deactivate();
+    	}
+    }
+
+    /** saveModel(), or under -sweep, every config's model, to file plus its suffix. */
+    static void saveAllModels(String file) throws IOException {
+    	saveAllModels(file, false);
+    }
+
+    static void saveAllModels(String file, boolean async) throws IOException {
+    	if (trainingConfigs == null) {
+    		saveModel(file, async);
+    		return;
+    	}
+    	for (TrainingConfig c : trainingConfigs) {
+    		c.activate();
+    		saveModel(file + "." + c.name, async);
+    		c.deactivate();
+    	}
+    }
+
+    /** test mode looks for the top classifier and preprocessing models next to the model file, so a -sweep model gets copies. */
+    static void copyPreprocessingModels(String toModelFile) throws IOException {
+    	List<String> suffixes = new ArrayList<>(Arrays.asList(Prune.modelFileSuffixes()));
+    	suffixes.add("topmodel");
+    	for (String suffix : suffixes) {
+    		Path from = Paths.get(modelFile + "." + suffix);
+    		if ( ! Files.exists(from)) continue;
+    		Files.copy(from, Paths.get(toModelFile + "." + suffix), StandardCopyOption.REPLACE_EXISTING);
     	}
     }
 
     static void allocateCoefs() {
+    	if (offHeapCoefs) {
+    		offHeap = new OffHeapCoefs((long) numHashBuckets, true);
+    		model.coefs = null;
+    		model.inferenceCoefs = offHeap;
+    		U.pf("%.1f MB of off-heap coefs and adagrad history\n", offHeap.bytes()/1e6);
+    		model.labelFeatureVocab.lock();
+    		model.calculateLabelHashes();
+    		return;
+    	}
     	int len = -1;
     	if (useHashing) {
     		len = (int) numHashBuckets;
@@ -439,15 +906,100 @@ public class LRParser {
     	else {
         	len = model.perceptVocab.size() * model.labelFeatureVocab.size();
     	}
-    	model.coefs = new float[len];
-    	ssGrad = new float[len];
-    	model.perceptVocab.lock();
+    	if (fusedKernel) {
+    		fused = new FusedAdagrad(len);
+    	}
+    	else if ( ! adagradStorage.equals("float")) {
+    		model.coefs = new float[len];
+    		leanHistory = AdagradHistory.create(adagradStorage, len);
+    		U.pf("adagrad history: %s, %.1f MB instead of %.1f MB\n", adagradStorage, leanHistory.bytes()/1e6, 4.0*len/1e6);
+    	}
+    	else {
+    		model.coefs = new float[len];
+    		ssGrad = new float[len];
+    	}
+    	if (lazyL2) {
+    		l2StepsApplied = new int[len];
+    		l2StepsDue = 0;
+    	}
+    	if ( ! growingPerceptVocab) {
+    		model.perceptVocab.lock();
+    	}
     	model.labelFeatureVocab.lock();
 		model.calculateLabelHashes();
     }
 	
+    /**
+     * Under -pipelineFirstPass without hashing, percepts keep getting added while iter 0 trains.
+     * coefs are percept-major, so a new percept's coefs go at the end and no existing index moves;
+     * they start at zero, just like they would have if the vocab had been complete up front.
+     */
+    static void ensureCoefCapacity(int len) {
+    	if (numCoefs() >= len) return;
+    	resizeCoefs(Math.max(len, (int) (NumberizedSentence.GROWTH_MULTIPLIER * numCoefs())));
+    }
+
+    static void resizeCoefs(int len) {
+    	if (fused != null) {
+    		fused.resize(len);
+    	}
+    	else if (leanHistory != null) {
+    		model.coefs = Arrays.copyOf(model.coefs, len);
+    		leanHistory.resize(len);
+    	}
+    	else {
+    		model.coefs = Arrays.copyOf(model.coefs, len);
+    		ssGrad = Arrays.copyOf(ssGrad, len);
+    	}
+    	if (lazyL2) {
+    		l2StepsApplied = Arrays.copyOf(l2StepsApplied, len);
+    	}
+    }
+	
+    /** Number of coefs being trained. */
+    static int numCoefs() {
+    	return fused != null ? fused.numCoefs() : model.coefs.length;
+    }
+
+    /** Flush pending lazy L2 steps, get the coefs out of the fused storage if need be, and save. */
+    static void saveModel(String file) throws IOException {
+    	syncModelCoefs();
+    	model.save(file);
+    }
+
+    /** saveModel(), or with async, snapshot the coefs and save them in the background (see AsyncModelSaver). */
+    static void saveModel(String file, boolean async) throws IOException {
+    	if (async) {
+    		AsyncModelSaver.save(file);
+    	}
+    	else {
+    		saveModel(file);
+    	}
+    }
+
+    /** Flush pending lazy L2 steps, and get the coefs out of the fused storage if need be, so model.coefs is current. */
+    static void syncModelCoefs() {
+    	flushLazyL2();
+    	copyFusedCoefs();
+    }
+
+    /** Under -fusedKernel, copy the coefs as they are into model.coefs. */
+    static void copyFusedCoefs() {
+    	if (fused != null) {
+    		if (model.coefs == null || model.coefs.length != fused.numCoefs()) {
+    			model.coefs = new float[fused.numCoefs()];
+    		}
+    		fused.copyCoefsInto(model.coefs);
+    	}
+    }
+
     /** From the new gradient value, update this feature's learning rate and return it. */
     static double adagradStoreRate(int featnum, double g) {
+    	if (leanHistory != null) {
+    		double ss = leanHistory.addSquare(featnum, g*g);
+    		if (ss < 1e-2) return 10.0;
+    		return 1.0 / Math.sqrt(ss);
+    	}
         ssGrad[featnum] += g*g;
         if (ssGrad[featnum] < 1e-2) return 10.0; // 1/sqrt(.01)
         return 1.0 / Math.sqrt(ssGrad[featnum]);
@@ -460,75 +1012,352 @@ public class LRParser {
     }
     
     static void setSentenceIndexOrder() {
-    	sentenceIndexOrder = intRangeList(inputSentences.length);
+    	// shard before shuffling: every -mixWorkers process has to agree on who gets which sentence
+    	sentenceIndexOrder = ParameterMixing.myShard(intRangeList(inputSentences.length));
 		if (shuffle) {
-			Collections.shuffle(sentenceIndexOrder);
+			Collections.shuffle(sentenceIndexOrder, shuffleRandom);
 		}
     }
+
+    /**
+     * A new random order for the next iteration.  Only valid without a feature cache, or with a random-access one.
+     * Shuffles blocks of shuffleBlockSize sentences that are consecutive in the cache (or in the data, without a cache),
+     * and visits each block in order.  With the default block size of 1 it's a plain permutation.
+     */
+    static void reshuffleSentenceIndexOrder() {
+    	List<Integer> storedOrder = cacheOrder != null ? cacheOrder : ParameterMixing.myShard(intRangeList(inputSentences.length));
+    	List<Integer> blockStarts = new ArrayList<>();
+    	for (int start=0; start < storedOrder.size(); start += shuffleBlockSize) {
+    		blockStarts.add(start);
+    	}
+    	Collections.shuffle(blockStarts, shuffleRandom);
+    	List<Integer> order = new ArrayList<>(storedOrder.size());
+    	for (int start : blockStarts) {
+    		int end = Math.min(start + shuffleBlockSize, storedOrder.size());
+    		order.addAll(storedOrder.subList(start, end));
+    	}
+    	sentenceIndexOrder = order;
+    }
     
     static void featureExtractionPass() {
 		double t0=System.currentTimeMillis(), dur;
 
-    	for (int snum : sentenceIndexOrder) {
-        	if (snum % 100==0) U.pf(".");
-        	extractFeaturesForExampleAndWriteToCache(snum);
-            if (snum>0 && snum % 1000 == 0) {
-                dur = System.currentTimeMillis()-t0;
-            	U.pf("%d sents, %.3fm percepts, %.1f MB mem used, %.2f ms/sent\n", 
-            			snum+1, model.perceptVocab.size()/1e6,
-            			Runtime.getRuntime().totalMemory()/1e6,
-            			dur/(snum+1)
-            			);
-            }
-            numTokens += inputSentences[snum].size();
-        }
+		if (feThreads > 1) {
+			featureExtractionPassParallel(t0);
+		}
+		else {
+	    	for (int snum : sentenceIndexOrder) {
+	        	handleExtractedExample(snum, extractFeatures(model, snum), t0);
+	        }
+		}
         dur = System.currentTimeMillis()-t0;
         U.pf("\nFE TIME %.1f sec, %.2f ms/sec\n", dur/1000, dur/inputSentences.length);
     }
+
+    static void reportExtractionProgress(int snum, double t0) {
+    	if (snum % 100==0) U.pf(".");
+        if (snum>0 && snum % 1000 == 0) {
+            double dur = System.currentTimeMillis()-t0;
+        	U.pf("%d sents, %.3fm percepts, %.1f MB mem used, %.2f ms/sent\n", 
+        			snum+1, model.perceptVocab.size()/1e6,
+        			Runtime.getRuntime().totalMemory()/1e6,
+        			dur/(snum+1)
+        			);
+        }
+        numTokens += inputSentences[snum].size();
+    }
+
+    /** how many sentences per extraction thread can be finished but not yet written.  bounds memory use. */
+    static final int FE_QUEUE_PER_THREAD = 32;
+
+    /**
+     * Runs extractFeatures() on a pool of feThreads workers, while this thread stays the only cache writer
+     * and consumes the results in sentenceIndexOrder.
+     * 
+     * Without hashing, each sentence is numberized against its own private Vocabulary, so workers never touch
+     * the shared model.perceptVocab.  The writer then remaps the private percept numbers into the shared vocab,
+     * in the private vocab's first-seen order.  That's the same order the single-threaded pass would have seen them,
+     * so the resulting vocab and cache are identical to a -feThreads 1 run.
+     */
+    static void featureExtractionPassParallel(double t0) {
+    	ExecutorService pool = Executors.newFixedThreadPool(feThreads);
+    	ArrayDeque<Pair<Integer, Future<Pair<NumberizedSentence, Vocabulary>>>> pending = new ArrayDeque<>();
+    	try {
+	    	for (final int snum : sentenceIndexOrder) {
+	    		pending.add(Pair.makePair(snum, pool.submit(new Callable<Pair<NumberizedSentence, Vocabulary>>() {
+	    			@Override
+	    			public Pair<NumberizedSentence, Vocabulary> call() {
+	    				Vocabulary sentVocab = useHashing ? model.perceptVocab : new Vocabulary();
+	    				NumberizedSentence ns = extractFeatures(model, sentVocab, inputSentences[snum],
+	    						graphMatrices != null ? graphMatrices.get(snum) : null);
+	    				return Pair.makePair(ns, useHashing ? null : sentVocab);
+	    			}
+	    		})));
+	    		if (pending.size() >= FE_QUEUE_PER_THREAD * feThreads) {
+	    			writeExtractedExample(pending.poll(), t0);
+	    		}
+	    	}
+	    	while ( ! pending.isEmpty()) {
+	    		writeExtractedExample(pending.poll(), t0);
+	    	}
+    	} catch (InterruptedException | ExecutionException e) {
+    		throw new RuntimeException("feature extraction worker failed", e);
+    	} finally {
+    		pool.shutdownNow();
+    	}
+    }
+
+    static void writeExtractedExample(Pair<Integer, Future<Pair<NumberizedSentence, Vocabulary>>> snumAndResult, double t0)
+    		throws InterruptedException, ExecutionException {
+    	Pair<NumberizedSentence, Vocabulary> result = snumAndResult.second.get();
+    	NumberizedSentence ns = result.first;
+    	Vocabulary sentVocab = result.second;
+    	if (sentVocab != null) {
+    		int[] sharedNums = new int[sentVocab.size()];
+    		for (int p=0; p<sharedNums.length; p++) {
+    			sharedNums[p] = model.perceptVocab.num(sentVocab.name(p));
+    		}
+    		for (int kk=0; kk<ns.nnz; kk++) {
+    			ns.perceptnums[kk] = sharedNums[ns.perceptnums[kk]];
+    		}
+    	}
+    	handleExtractedExample(snumAndResult.first, ns, t0);
+    }
+
+    /** The first pass's work for each sentence, in sentenceIndexOrder: cache it, and under -pipelineFirstPass, train iter 0 on it. */
+    static void handleExtractedExample(int snum, NumberizedSentence ns, double t0) {
+    	writeToCache(ns);
+    	if (pipelineFirstPass) {
+    		firstPassLL += trainOnExample(snum, ns);
+    	}
+    	reportExtractionProgress(snum, t0);
+    }
     
     /** adagrad: http://www.ark.cs.cmu.edu/cdyer/adagrad.pdf */ 
-    static void trainOnlineIter() throws FileNotFoundException {
+    static void trainOnlineIter() throws IOException {
+		finishTrainOnlineIter(trainOnSentences());
+    }
+
+    /** one pass over sentenceIndexOrder, without the end-of-iter L2 step.  Returns the data loglik. */
+    static double trainOnSentences() {
 		assert model.labelVocab.isLocked() : "since we have autolabelconj, can't tolerate label vocab expanding during a training pass.";
 		assert model.labelFeatureVocab.isLocked() : "since we have autolabelconj, can't tolerate label vocab expanding during a training pass.";
 
 		double ll = 0;
-    	for (int snum : sentenceIndexOrder) {
+		ExamplePrefetcher prefetcher = prefetch > 0 ? new ExamplePrefetcher(sentenceIndexOrder, prefetch) : null;
+		if (trainThreads > 1) {
+			ll += trainOnlineIterHogwild(prefetcher);
+		}
+		else {
+	    	for (int snum : sentenceIndexOrder) {
+	
+	        	if (snum % 100==0) U.pf(".");
+	            
+	            NumberizedSentence ns = prefetcher != null ? prefetcher.take() : getNextExample(snum);
+	            ll += trainOnExample(snum, ns);
+	        }
+		}
+		if (prefetcher != null) {
+			U.pf("prefetch stall %.1f sec  ", prefetcher.finish());
+		}
+		return ll;
+    }
+
+    /**
+     * The single-threaded training step for one sentence.  Returns its data loglik.
+     * Under -sweep, every config's model takes the step, each accumulating its own loglik, and this returns 0.
+     */
+    static double trainOnExample(int snum, NumberizedSentence ns) {
+    	if (trainingConfigs == null) {
+    		if (growingPerceptVocab) {
+    			ensureCoefCapacity(model.perceptVocab.size() * model.labelFeatureVocab.size());
+    		}
+    		return updateExampleLogReg(ns, graphMatrices.get(snum), inputSentences[snum]);
+    	}
+    	for (TrainingConfig c : trainingConfigs) {
+    		c.activate();
+    		if (c.singletonPredProbs != null) {
+    			inputSentences[snum].singletonPredProbs = c.singletonPredProbs[snum];
+    		}
+    		if (growingPerceptVocab) {
+    			ensureCoefCapacity(model.perceptVocab.size() * model.labelFeatureVocab.size());
+    		}
+    		c.ll += updateExampleLogReg(ns, graphMatrices.get(snum), inputSentences[snum]);
+    		c.deactivate();
+    	}
+    	if (extractionSingletonPredProbs != null) {
+    		inputSentences[snum].singletonPredProbs = extractionSingletonPredProbs[snum];
+    	}
+    	return 0;
+    }
+
+    /** end of a training iteration: the L2 step, and the report. ll is the data loglik so far.  Under -sweep, for every config. */
+    static void finishTrainOnlineIter(double ll) {
+    	if (trainingConfigs == null) {
+    		finishTrainOnlineIterForModel(ll);
+    		return;
+    	}
+    	for (TrainingConfig c : trainingConfigs) {
+    		c.activate();
+    		U.pf("\n    %s ", c.name);
+    		finishTrainOnlineIterForModel(c.ll);
+    		c.ll = 0;
+    		c.deactivate();
+    	}
+    	U.pf("\n   ");
+    }
 
-        	if (snum % 100==0) U.pf(".");
-            
-            NumberizedSentence ns = getNextExample(snum);
-    		int[][] edgeMatrix = graphMatrices.get(snum);
-            ll += updateExampleLogReg(ns, edgeMatrix, inputSentences[snum]);
+    static void finishTrainOnlineIterForModel(double ll) {
+        if (lazyL2) {
+        	// every coef now owes one more L2 step; it's paid in catchUpL2() when the coef is next touched,
+        	// and its logprior term goes into the ll of the example that touches it.
+        	l2StepsDue++;
+        }
+        else if (offHeap != null) {
+        	ll += offHeap.l2StepAll();
         }
-        //  logprior  =  - (1/2) lambda || beta ||^2
-        //  gradient =  - lambda beta
-        for (int f=0; f< model.coefs.length; f++) {
-            ll -= 0.5 * l2reg * model.coefs[f]*model.coefs[f];
-            double g = l2reg * model.coefs[f];
-			model.coefs[f] -= adagradStoreRate(f,g) * learningRate * g;
+        else {
+	        for (int f=0; f< numCoefs(); f++) {
+	            ll += l2Step(f);
+	        }
         }
         U.pf("ll %.1f  ", ll);
+        if (leanHistory instanceof AdagradHistory.Sparse) {
+        	U.pf("adagrad history %.1f MB  ", leanHistory.bytes()/1e6);
+        }
+        lastIterLL = ll;
+    }
+
+    /**
+     * One adagrad step on the L2 prior for coef f.  Returns its logprior term.
+     *   logprior  =  - (1/2) lambda || beta ||^2
+     *   gradient =  - lambda beta
+     */
+    static double l2Step(int f) {
+    	if (fused != null) return fused.l2Step(f);
+        double logprior = -0.5 * l2reg * model.coefs[f]*model.coefs[f];
+        double g = l2reg * model.coefs[f];
+		model.coefs[f] -= adagradStoreRate(f,g) * learningRate * g;
+		return logprior;
     }
 
+    /**
+     * Under -lazyL2, apply the L2 steps that coef f missed since it was last touched.
+     * These are the same steps, in the same order relative to f's own gradient updates, as the eager per-iteration sweep,
+     * so single-threaded results are identical.  A step on a zero coef is a no-op, so untouched coefs cost nothing.
+     * Under Hogwild two threads can occasionally both apply the same pending step; like the rest of Hogwild, we live with it.
+     * Returns the steps' logprior terms, for the caller to add to its own ll, so Hogwild workers don't share an accumulator.
+     */
+    static double catchUpL2(int f) {
+    	if (l2StepsApplied[f] == l2StepsDue) return 0;
+    	double logprior = 0;
+    	if ((fused != null ? fused.coef(f) : model.coefs[f]) != 0) {
+    		for (int step=l2StepsApplied[f]; step < l2StepsDue; step++) {
+    			logprior += l2Step(f);
+    		}
+    	}
+    	l2StepsApplied[f] = l2StepsDue;
+    	return logprior;
+    }
+
+    /** Under -lazyL2, bring every coef up to date, e.g. before saving the model. */
+    static void flushLazyL2() {
+    	if (!lazyL2) return;
+    	for (int f=0; f < numCoefs(); f++) {
+    		catchUpL2(f);
+    	}
+    }
+
+	/**
+	 * Hogwild (Niu et al. 2011, http://arxiv.org/abs/1106.5730) version of the sentence loop.
+	 * Workers pull sentences off sentenceIndexOrder and update model.coefs and ssGrad without any locking.
+	 * Updates are sparse so collisions are rare, but the result depends on thread scheduling,
+	 * so use -trainThreads 1 for reproducible runs.
+	 * With the feature cache or a prefetcher, examples must be taken in order, so that part is serialized and only the updates are parallel.
+	 * Under -noedgeSampleRate each worker samples with its own Random (seeded from noedgeSampler), since Random isn't built for sharing.
+	 */
+	static double trainOnlineIterHogwild(final ExamplePrefetcher prefetcher) {
+		final boolean readFromCache = useFeatureCache && cacheReadMode;
+		final int[] nextPosition = { 0 };
+		ExecutorService pool = Executors.newFixedThreadPool(trainThreads);
+		List<Future<Double>> workerLLs = new ArrayList<>();
+		for (int w=0; w<trainThreads; w++) {
+			final Random sampler = noedgeSampleRate < 1 ? new Random(noedgeSampler.nextLong()) : null;
+			workerLLs.add(pool.submit(new Callable<Double>() {
+				@Override
+				public Double call() {
+					workerNoedgeSampler.set(sampler);
+					double ll = 0;
+					while (true) {
+						int snum;
+						NumberizedSentence ns = null;
+						synchronized (nextPosition) {
+							if (nextPosition[0] >= sentenceIndexOrder.size()) break;
+							snum = sentenceIndexOrder.get(nextPosition[0]++);
+							if (prefetcher != null) ns = prefetcher.take();
+							else if (readFromCache) ns = getNextExample(snum);
+						}
+						if (ns == null) ns = getNextExample(snum);
+						if (snum % 100==0) U.pf(".");
+						ll += updateExampleLogReg(ns, graphMatrices.get(snum), inputSentences[snum]);
+					}
+					return ll;
+				}
+			}));
+		}
+		pool.shutdown();
+		double ll = 0;
+		try {
+			for (Future<Double> workerLL : workerLLs) {
+				ll += workerLL.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Hogwild training worker failed", e);
+		}
+		return ll;
+	}
+
 	static double updateExampleLogReg(NumberizedSentence sentence, int[][] edgeMatrix, InputAnnotatedSentence isent) {
+		if (fused != null) {
+			return fused.updateExample(model, sentence, edgeMatrix, isent);
+		}
 		final int noEdgeIdx = model.labelVocab.num(NO_EDGE);
 		double ll = 0;
 
-		double[][][] probs = model.inferEdgeProbs(sentence, isent);
+		final boolean[][] skip = skippedPairs(isent, edgeMatrix, noEdgeIdx);
+		final double noedgeW = noedgeTrainWeight();
+
+		if (lazyL2) {
+			// the coefs read by inference below are exactly the ones this sentence updates
+			for (int kk = 0; kk < sentence.nnz; kk++) {
+				if (skip != null && skip[sentence.i(kk)][sentence.j(kk)]) continue;
+				for (int label = 0; label < model.labelVocab.size(); label++) {
+					for (int labelFeatureIdx : model.featuresByLabel.get(label)) {
+						ll += catchUpL2(model.coefIdx(sentence.perceptnum(kk), labelFeatureIdx));
+					}
+				}
+			}
+		}
+		double[][][] probs = model.inferEdgeProbs(sentence, isent, skip);
 		
 		for (int kk = 0; kk < sentence.nnz; kk++) {
 		    int i = sentence.i(kk);
 			int j = sentence.j(kk);
+			if (skip != null && skip[i][j]) continue;
 			int perceptNum = sentence.perceptnum(kk);
 			final int goldLabelIdx = edgeMatrix[i][j];
 			// manually downweight the NO_EDGE label
-			final double w = goldLabelIdx == noEdgeIdx ? noedgeWeight : 1.0;
+			final double w = goldLabelIdx == noEdgeIdx ? noedgeW : 1.0;
 
 		    for (int label = 0; label < model.labelVocab.size(); label++) {
 				int isObserved = goldLabelIdx == label ? 1 : 0;
 				double resid = isObserved - probs[i][j][label];
 				double g = w * resid * sentence.value(kk);
 				for (int labelFeatureIdx : model.featuresByLabel.get(label)) {
+					if (offHeap != null) {
+						offHeap.update(model.coefIdx64(perceptNum, labelFeatureIdx), g);
+						continue;
+					}
 					int ffnum = model.coefIdx(perceptNum, labelFeatureIdx);
 					double rate = adagradStoreRate(ffnum, g);
 					model.coefs[ffnum] += learningRate * rate * g;
@@ -540,13 +1369,41 @@ public class LRParser {
 		for (int i=0;i<sentence.T;i++) {
 		    for (int j=0; j<sentence.T;j++) {
 		        if (badPair(isent, i,j)) continue;
-		        double w = edgeMatrix[i][j]==0 ? noedgeWeight : 1.0;
+		        if (skip != null && skip[i][j]) continue;
+		        double w = edgeMatrix[i][j]==0 ? noedgeW : 1.0;
 		        ll += w * Math.log(probs[i][j][edgeMatrix[i][j]]);
 		    }
 		}
 		return ll;
 	}
 	
+	/**
+	 * Decide which pairs of this sentence to leave out of this update: skip[i][j] is true for those.
+	 * Under -noedgeSampleRate, that's the gold NOEDGE pairs that weren't sampled.
+	 * Under -formalisms, the cached features cover the pairs of every formalism, so it's also the pairs this formalism prunes.
+	 * Returns null when every pair is used.
+	 */
+	static boolean[][] skippedPairs(InputAnnotatedSentence isent, int[][] edgeMatrix, int noEdgeIdx) {
+		final boolean sampling = noedgeSampleRate < 1;
+		final boolean joint = formalisms != null;
+		if ( ! sampling && ! joint) return null;
+		final int T = edgeMatrix.length;
+		boolean[][] skip = new boolean[T][T];
+		final Random sampler = workerNoedgeSampler.get() != null ? workerNoedgeSampler.get() : noedgeSampler;
+		for (int i=0; i<T; i++) {
+			for (int j=0; j<T; j++) {
+				skip[i][j] = (joint && badPair(isent, i, j))
+						|| (sampling && edgeMatrix[i][j] == noEdgeIdx && sampler.nextDouble() >= noedgeSampleRate);
+			}
+		}
+		return skip;
+	}
+
+	/** NOEDGE pairs' weight in training: noedgeWeight, scaled up by the inverse sampling rate under -noedgeSampleRate. */
+	static double noedgeTrainWeight() {
+		return noedgeSampleRate >= 1 ? noedgeWeight : noedgeWeight / noedgeSampleRate;
+	}
+
 	public static MyGraph decodeToGraph(InputAnnotatedSentence sent, NumberizedSentence ns) {
 	    MyGraph g = MyGraph.decodeEdgeProbsToGraph(
 	    		sent, model.inferEdgeProbs(ns,sent), model.labelVocab, true);
@@ -557,48 +1414,71 @@ public class LRParser {
 
 
 	// START feature cache stuff
-    // uses https://github.com/EsotericSoftware/kryo found from http://stackoverflow.com/questions/239280/which-is-the-best-alternative-for-java-serialization
     
-    static Kryo kryo;
-    static { kryo = new Kryo(); }
+    static FeatureCache featureCache;
     static boolean cacheReadMode = false;
-    static Input kryoInput;
-    static Output kryoOutput;
+    /** for a random-access cache: the order the sentences were written in, and its inverse, each sentence's position in the cache. */
+    static List<Integer> cacheOrder;
+    static int[] cachePositions;
     static String featureCacheFile;
     static { featureCacheFile = "featcache." + MiscUtil.getProcessId("bla") + ".bin"; }
     
     /** this should work with or without caching enabled.
-     * for caching, assume accesses are in order!!
+     * for caching, assume accesses are in order!!  unless the cache is random-access.
      */
     static NumberizedSentence getNextExample(int snum) {
     	if (useFeatureCache && cacheReadMode) {
-    		return kryo.readObject(kryoInput, NumberizedSentence.class);
+    		return cachePositions != null ? featureCache.get(cachePositions[snum]) : featureCache.next();
     	} else {
     		NumberizedSentence ns = extractFeatures(model, snum);
     		return ns;
     	}
     }
-    static void openCacheForWriting() throws FileNotFoundException {
+    /** -persistentCacheDir: if an earlier run stored the cache this run would extract, open it instead.  Returns whether it did. */
+    static boolean reusePersistentCache() throws IOException {
+    	PersistentFeatureCache.computeKey();
+    	PersistentFeatureCache.lockShared();
+    	if ( ! PersistentFeatureCache.exists()) {
+    		U.pf("No stored feature cache %s, extracting\n", PersistentFeatureCache.entryDir());
+    		return false;
+    	}
+    	U.pf("Reusing stored feature cache %s\n", PersistentFeatureCache.entryDir());
+    	featureCache = PersistentFeatureCache.open();
+    	return true;
+    }
+    static void openCacheForWriting() throws IOException {
     	if (!useFeatureCache) return;
-        kryoOutput = new Output(new FileOutputStream(featureCacheFile));
+    	if (persistentCacheDir != null) {
+    		featureCacheFile = PersistentFeatureCache.partialFeatureFile();
+    	}
+    	featureCache = featureCacheFormat.equals("mapped") ? new MappedFeatureCache(featureCacheFile) :
+    			featureCacheFormat.equals("packed") ? new PackedFeatureCache(featureCacheFile, (long) (featureCacheMemoryMB*1e6)) :
+    			new KryoFeatureCache(featureCacheFile);
     }
-    static void extractFeaturesForExampleAndWriteToCache(int snum) {
-		NumberizedSentence ns = extractFeatures(model, snum);
-		kryo.writeObject(kryoOutput, ns);
+    static void writeToCache(NumberizedSentence ns) {
+		featureCache.write(ns);
+		NumberizedSentence.totalNNZ += ns.nnz;
     }
-    static void closeCacheAfterWriting() {
+    static void closeCacheAfterWriting() throws IOException {
     	if (!useFeatureCache) return;
-    	kryoOutput.close();
-    	long size = new File(featureCacheFile).length();
-    	U.pf("Feature cache (%s) is %.1f MB, %.2f MB/sent\n", 
-    			featureCacheFile, size*1.0/1e6, size*1.0/1e6/inputSentences.length);
+    	featureCache.finishWriting();
+    	long size = featureCache.sizeInBytes();
+    	U.pf("Feature cache (%s, %s format) is %.1f MB, %.2f MB/sent\n", 
+    			featureCacheFile, featureCacheFormat, size*1.0/1e6, size*1.0/1e6/inputSentences.length);
+    	if (persistentCacheDir != null) {
+    		featureCache = PersistentFeatureCache.commit(featureCache);
+    	}
     }
-    static void resetCacheReader() throws FileNotFoundException {
-    	if (!useFeatureCache) return;
-    	if (kryoInput != null) {
-        	kryoInput.close();
+    static void recordCachePositions() {
+    	cacheOrder = new ArrayList<>(sentenceIndexOrder);
+    	cachePositions = new int[inputSentences.length];
+    	for (int pos=0; pos < cacheOrder.size(); pos++) {
+    		cachePositions[cacheOrder.get(pos)] = pos;
     	}
-    	kryoInput = new Input(new FileInputStream(featureCacheFile));
+    }
+    static void resetCacheReader() throws IOException {
+    	if (!useFeatureCache) return;
+    	featureCache.startIteration();
     }
     
     // END feature cache stuff
@@ -620,6 +1500,22 @@ public class LRParser {
 		return allFE;
 	}
 
+	/** under -formalisms: the label feature extractors for one formalism, i.e. its own -use*LabelFeatures only. */
+	static List<FE.LabelFE> labelFeatureExtractorsFor(String formalism) {
+		List<FE.LabelFE> extractors = new ArrayList<>();
+		extractors.add(new PassThroughFe());
+		if (formalism.equals("dm") && useDmLabelFeatures) {
+			extractors.add(new DmFe());
+		}
+		if (formalism.equals("pas") && usePasLabelFeatures) {
+			extractors.add(new PasFe());
+		}
+		if (formalism.equals("pcedt") && usePcedtLabelFeatures) {
+			extractors.add(new PcedtFE());
+		}
+		return extractors;
+	}
+
 	static void initializeLabelFeatureExtractors() {
 		// always use the name of the label itself
 		labelFeatureExtractors.add(new PassThroughFe());
@@ -0,0 +1,250 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Columnar feature cache, read through memory maps.
+ * 
+ * File layout (big-endian):
+ *   int MAGIC, int VERSION, int #sentences, long #nonzeros
+ *   int[#sentences]     sentence lengths (T)
+ *   long[#sentences+1]  offset of each sentence's first nonzero in the columns; the last entry is #nonzeros
+ *   short[#nonzeros]    i column
+ *   short[#nonzeros]    j column
+ *   int[#nonzeros]      perceptnum column
+ *   float[#nonzeros]    value column
+ * 
+ * While writing, the four columns go to separate temp files, which get concatenated behind the index at the end.
+ * Reading copies a sentence's slice of each column into a NumberizedSentence that's reused per thread,
+ * so training iterations don't allocate per sentence, and the OS page cache keeps the file hot across iterations.
+ * The index makes it random-access, so iterations can visit the sentences in any order.
+ */
+class MappedFeatureCache extends FeatureCache {
+	static final int MAGIC = 0x53445046;  // "SDPF"
+	static final int VERSION = 1;
+	static final String[] COLUMN_SUFFIXES = { ".i", ".j", ".p", ".v" };
+
+	final String cacheFile;
+
+	// writing state
+	DataOutputStream[] columnOutputs;
+	int numSents = 0;
+	int[] sentLengths = new int[1000];
+	long[] sentStarts = new long[1001];
+	long totalNNZ = 0;
+
+	// reading state
+	MappedColumn iColumn, jColumn, perceptColumn, valueColumn;
+	int nextSentence = 0;
+	final ThreadLocal<NumberizedSentence> reusedSentence = new ThreadLocal<NumberizedSentence>() {
+		@Override
+		protected NumberizedSentence initialValue() {
+			return new NumberizedSentence(0);
+		}
+	};
+
+	MappedFeatureCache(String cacheFile) throws IOException {
+		this(cacheFile, true);
+	}
+
+	private MappedFeatureCache(String cacheFile, boolean forWriting) throws IOException {
+		this.cacheFile = cacheFile;
+		if ( ! forWriting) return;
+		columnOutputs = new DataOutputStream[COLUMN_SUFFIXES.length];
+		for (int c=0; c<COLUMN_SUFFIXES.length; c++) {
+			columnOutputs[c] = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(cacheFile + COLUMN_SUFFIXES[c]), 1<<16));
+		}
+	}
+
+	/** reopen a finished cache file, e.g. one kept by -persistentCacheDir. */
+	static MappedFeatureCache openForReading(String cacheFile) throws IOException {
+		MappedFeatureCache c = new MappedFeatureCache(cacheFile, false);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1<<16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a version " + VERSION + " mapped feature cache: " + cacheFile);
+			}
+			c.numSents = in.readInt();
+			c.totalNNZ = in.readLong();
+			c.sentLengths = new int[c.numSents];
+			c.sentStarts = new long[c.numSents + 1];
+			for (int s=0; s<c.numSents; s++) c.sentLengths[s] = in.readInt();
+			for (int s=0; s<=c.numSents; s++) c.sentStarts[s] = in.readLong();
+		}
+		c.mapForReading();
+		return c;
+	}
+
+	@Override
+	void write(NumberizedSentence ns) {
+		assert ns.T <= Short.MAX_VALUE : "token indexes are stored as shorts";
+		if (numSents == sentLengths.length) {
+			sentLengths = Arrays.copyOf(sentLengths, (int) (NumberizedSentence.GROWTH_MULTIPLIER * numSents));
+			sentStarts = Arrays.copyOf(sentStarts, sentLengths.length + 1);
+		}
+		try {
+			for (int kk=0; kk<ns.nnz; kk++) {
+				columnOutputs[0].writeShort(ns.i(kk));
+				columnOutputs[1].writeShort(ns.j(kk));
+				columnOutputs[2].writeInt(ns.perceptnum(kk));
+				columnOutputs[3].writeFloat(ns.value(kk));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("couldn't write to feature cache " + cacheFile, e);
+		}
+		sentLengths[numSents] = ns.T;
+		sentStarts[numSents] = totalNNZ;
+		totalNNZ += ns.nnz;
+		numSents++;
+		sentStarts[numSents] = totalNNZ;
+	}
+
+	@Override
+	void finishWriting() throws IOException {
+		for (DataOutputStream out : columnOutputs) {
+			out.close();
+		}
+		columnOutputs = null;
+
+		ByteBuffer header = ByteBuffer.allocate(headerBytes(numSents));
+		header.putInt(MAGIC).putInt(VERSION).putInt(numSents).putLong(totalNNZ);
+		for (int s=0; s<numSents; s++) header.putInt(sentLengths[s]);
+		for (int s=0; s<=numSents; s++) header.putLong(sentStarts[s]);
+		header.flip();
+
+		try (FileChannel out = FileChannel.open(Paths.get(cacheFile),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (header.hasRemaining()) out.write(header);
+			for (String suffix : COLUMN_SUFFIXES) {
+				Path columnFile = Paths.get(cacheFile + suffix);
+				try (FileChannel in = FileChannel.open(columnFile, StandardOpenOption.READ)) {
+					long pos = 0, size = in.size();
+					while (pos < size) {
+						pos += in.transferTo(pos, size - pos, out);
+					}
+				}
+				Files.delete(columnFile);
+			}
+		}
+		mapForReading();
+	}
+
+	static int headerBytes(int numSents) {
+		return 4 + 4 + 4 + 8 + 4*numSents + 8*(numSents+1);
+	}
+
+	void mapForReading() throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+			long offset = headerBytes(numSents);
+			iColumn = new MappedColumn(ch, offset, totalNNZ, 2);
+			offset += 2*totalNNZ;
+			jColumn = new MappedColumn(ch, offset, totalNNZ, 2);
+			offset += 2*totalNNZ;
+			perceptColumn = new MappedColumn(ch, offset, totalNNZ, 4);
+			offset += 4*totalNNZ;
+			valueColumn = new MappedColumn(ch, offset, totalNNZ, 4);
+		}
+		// the mappings stay valid after the channel is closed.
+	}
+
+	@Override
+	void startIteration() {
+		nextSentence = 0;
+	}
+
+	@Override
+	NumberizedSentence next() {
+		return read(nextSentence++, reusedSentence.get());
+	}
+
+	@Override
+	boolean supportsRandomAccess() {
+		return true;
+	}
+
+	@Override
+	NumberizedSentence get(int position) {
+		return read(position, reusedSentence.get());
+	}
+
+	/** copy sentence number s (in cache order) into ns, reusing its arrays. */
+	NumberizedSentence read(int s, NumberizedSentence ns) {
+		final long start = sentStarts[s];
+		final int nnz = (int) (sentStarts[s+1] - start);
+		ns.reset(sentLengths[s], nnz);
+		for (int kk=0; kk<nnz; kk++) {
+			final long k = start + kk;
+			ns.iIndexes[kk] = iColumn.getShort(k);
+			ns.jIndexes[kk] = jColumn.getShort(k);
+			ns.perceptnums[kk] = perceptColumn.getInt(k);
+			ns.values[kk] = valueColumn.getFloat(k);
+		}
+		ns.nnz = nnz;
+		return ns;
+	}
+
+	@Override
+	long sizeInBytes() {
+		return new File(cacheFile).length();
+	}
+
+	@Override
+	void delete() throws IOException {
+		iColumn = jColumn = perceptColumn = valueColumn = null;
+		Files.deleteIfExists(Paths.get(cacheFile));
+		for (String suffix : COLUMN_SUFFIXES) {
+			Files.deleteIfExists(Paths.get(cacheFile + suffix));
+		}
+	}
+
+	/**
+	 * A column of fixed-width values.  A single MappedByteBuffer can't address more than 2GB,
+	 * so the column is mapped as a series of segments of 2^SEGMENT_BITS values each.
+	 */
+	static class MappedColumn {
+		static final int SEGMENT_BITS = 27;
+		static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+		final ByteBuffer[] segments;
+		final int width;
+		final long numValues;
+
+		MappedColumn(FileChannel ch, long offset, long numValues, int width) throws IOException {
+			this(ch, offset, numValues, width, ByteOrder.BIG_ENDIAN);
+		}
+
+		MappedColumn(FileChannel ch, long offset, long numValues, int width, ByteOrder order) throws IOException {
+			this.width = width;
+			this.numValues = numValues;
+			int numSegments = (int) ((numValues + SEGMENT_MASK) >>> SEGMENT_BITS);
+			segments = new ByteBuffer[numSegments];
+			for (int s=0; s<numSegments; s++) {
+				long first = (long) s << SEGMENT_BITS;
+				long n = Math.min(1L << SEGMENT_BITS, numValues - first);
+				segments[s] = ch.map(FileChannel.MapMode.READ_ONLY, offset + first*width, n*width).order(order);
+			}
+		}
+
+		private ByteBuffer segment(long k) { return segments[(int) (k >>> SEGMENT_BITS)]; }
+		private int byteIndex(long k) { return (int) (k & SEGMENT_MASK) * width; }
+
+		short getShort(long k) { return segment(k).getShort(byteIndex(k)); }
+		int getInt(long k) { return segment(k).getInt(byteIndex(k)); }
+		float getFloat(long k) { return segment(k).getFloat(byteIndex(k)); }
+	}
+}
@@ -6,12 +6,24 @@ import util.U;
 import util.Vocabulary;
 import util.misc.Triple;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentence;
 
@@ -23,7 +35,7 @@ public class Model {
 	private static final String FEATURES_BY_LABEL_HEADER = "FEATURES_BY_LABEL";
 	private static final String COEFFICIENTS_HEADER = "C";
 	private static final String HASH_COEF_HEADER = "H";
-	private static final double MINIMUM_WEIGHT_THRESHOLD = 1e-7;
+	static final double MINIMUM_WEIGHT_THRESHOLD = 1e-7;
 
 	/** This is for label-side features */
 	public final Vocabulary labelVocab;
@@ -36,6 +48,10 @@ public class Model {
 	final Vocabulary perceptVocab;
 	/** flattened form: #percepts * #labelFeatures */
 	float[] coefs; // 
+	/** instead of coefs, for a loaded model under -inferenceCoefs mapped or sparse.  Read-only. */
+	InferenceCoefs inferenceCoefs;
+	/** only under -compileScores, in test mode: per-percept label score rows, used instead of the coefs when scoring. */
+	CompiledScores compiled;
 
 	public Model(
 			Vocabulary labelVocab,
@@ -67,11 +83,17 @@ public class Model {
 	 * for token i and token j, prob dist over the possible edge labels.
 	 */
 	public double[][][] inferEdgeProbs(NumberizedSentence ns, InputAnnotatedSentence isent) {
-		double[][][] scores = inferEdgeScores(ns);
+		return inferEdgeProbs(ns, isent, null);
+	}
+
+	/** same, but pairs with skip[i][j] set are left unscored.  skip can be null. */
+	double[][][] inferEdgeProbs(NumberizedSentence ns, InputAnnotatedSentence isent, boolean[][] skip) {
+		double[][][] scores = inferEdgeScores(ns, skip);
 		// transform in-place into probs
 		for (int i=0; i<ns.T; i++) {
 			for (int j=0; j<ns.T; j++) {
 				if (LRParser.badPair(isent, i, j)) continue;
+				if (skip != null && skip[i][j]) continue;
 				Arr.softmaxInPlace(scores[i][j]);
 			}
 		}
@@ -82,8 +104,24 @@ public class Model {
 	 * for token i and token j, nonneg scores (unnorm probs) per edge label
 	 */
 	double[][][] inferEdgeScores(NumberizedSentence ns) {
+		return inferEdgeScores(ns, null);
+	}
+
+	double[][][] inferEdgeScores(NumberizedSentence ns, boolean[][] skip) {
 		double[][][] scores = new double[ns.T][ns.T][labelVocab.size()];
+		if (compiled != null) {
+			for (int kk=0; kk<ns.nnz; kk++) {
+				if (skip != null && skip[ns.i(kk)][ns.j(kk)]) continue;
+				compiled.addScores(ns.perceptnum(kk), ns.value(kk), scores[ns.i(kk)][ns.j(kk)]);
+			}
+			return scores;
+		}
+		if (coefs == null) {
+			addInferenceCoefScores(ns, skip, scores);
+			return scores;
+		}
 		for (int kk=0; kk<ns.nnz; kk++) {
+			if (skip != null && skip[ns.i(kk)][ns.j(kk)]) continue;
 			for (int label=0; label< labelVocab.size(); label++) {
 				for (int labelFeatureIdx : featuresByLabel.get(label)) {
 					final int featureIdx = coefIdx(ns.perceptnum(kk), labelFeatureIdx);
@@ -93,7 +131,28 @@ public class Model {
 		}
 		return scores;
 	}
+
+	/** the same loop over inferenceCoefs, which are long-indexed (see coefIdx64()). */
+	private void addInferenceCoefScores(NumberizedSentence ns, boolean[][] skip, double[][][] scores) {
+		for (int kk=0; kk<ns.nnz; kk++) {
+			if (skip != null && skip[ns.i(kk)][ns.j(kk)]) continue;
+			for (int label=0; label< labelVocab.size(); label++) {
+				for (int labelFeatureIdx : featuresByLabel.get(label)) {
+					final long featureIdx = coefIdx64(ns.perceptnum(kk), labelFeatureIdx);
+					scores[ns.i(kk)][ns.j(kk)][label] += inferenceCoefs.get(featureIdx) * ns.value(kk);
+				}
+			}
+		}
+	}
 	
+	float coef(long f) {
+		return coefs != null ? coefs[(int) f] : inferenceCoefs.get(f);
+	}
+
+	long numCoefs() {
+		return coefs != null ? coefs.length : inferenceCoefs.size();
+	}
+
 	int[] labelHashes;
 	
 	public void calculateLabelHashes() {
@@ -127,6 +186,25 @@ public class Model {
 	    return hash;
 	}
 	
+	/**
+	 * coefIdx(), or with 2^31 or more hash buckets (see OffHeapCoefs), a 64-bit index from a 64-bit hash.
+	 * Below that it's the same index, so a model can move between the float[] and off-heap storage.
+	 */
+	long coefIdx64(int perceptIdx, int labelFeatureIdx) {
+		if (LRParser.useHashing && LRParser.numHashBuckets > Integer.MAX_VALUE) {
+			long h = longHash(((long) intHash1(perceptIdx) << 32) | (labelHashes[labelFeatureIdx] & 0xFFFFFFFFL));
+			return (h & Long.MAX_VALUE) % (long) LRParser.numHashBuckets;
+		}
+		return coefIdx(perceptIdx, labelFeatureIdx);
+	}
+
+	/** MurmurHash3's 64-bit finalizer */
+	static long longHash(long x) {
+		x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+		x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return x ^ (x >>> 33);
+	}
+
 	/** index into coefs. */
 	int coefIdx(int perceptIdx, int labelFeatureIdx) {
 		if (LRParser.useHashing){
@@ -141,11 +219,57 @@ public class Model {
 		}
 	}
 
+	/** total length of featuresByLabel: how many coefs one percept has across all labels. */
+	int numLabelCoefs() {
+		int n = 0;
+		for (int[] feats : featuresByLabel) n += feats.length;
+		return n;
+	}
+
+	/**
+	 * coefIdx() for every (label, labelFeature) in featuresByLabel order, written to out[offset..offset+numLabelCoefs()).
+	 * The percept-side hash is computed once instead of once per label feature.
+	 */
+	void resolveCoefIdxs(int perceptIdx, int[] out, int offset) {
+		int p = offset;
+		if (LRParser.useHashing) {
+			final int perceptHash = intHash1(perceptIdx);
+			final int buckets = (int) LRParser.numHashBuckets;
+			for (int[] feats : featuresByLabel) {
+				for (int labelFeatureIdx : feats) {
+					out[p++] = Math.abs(hashTwoInts(perceptHash, labelHashes[labelFeatureIdx]) % buckets);
+				}
+			}
+		}
+		else {
+			assert perceptIdx >= 0;
+			final int base = perceptIdx * labelFeatureVocab.size();
+			for (int[] feats : featuresByLabel) {
+				for (int labelFeatureIdx : feats) {
+					out[p++] = base + labelFeatureIdx;
+				}
+			}
+		}
+	}
+
 	private static int coefIdx(Vocabulary labelFeatureVocab, int perceptIdx, int labelFeatureIdx) {
 		return perceptIdx * labelFeatureVocab.size() + labelFeatureIdx;
 	}
 
+	/** reads either format (see BinaryModelFormat), then under -inferenceCoefs int8 or int16, quantizes the coefs. */
 	static Model load(String modelFile) throws IOException {
+		Model m = BinaryModelFormat.isBinary(modelFile) ? BinaryModelFormat.read(modelFile) : loadText(modelFile);
+		int bits = LRParser.inferenceCoefs.equals("int8") ? 8 : LRParser.inferenceCoefs.equals("int16") ? 16 : 0;
+		if (bits > 0 && ! (m.inferenceCoefs instanceof InferenceCoefs.Quantized)) {
+			InferenceCoefs.Quantized q = InferenceCoefs.Quantized.quantize(m, bits, LRParser.quantBlockSize);
+			m.coefs = null;
+			m.inferenceCoefs = q;
+			U.pf("Quantized coefs to %d bits, blocks of %d: %.1f MB\n", bits, q.blockSize(), q.bytes()/1e6);
+		}
+		return m;
+	}
+
+	private static Model loadText(String modelFile) throws IOException {
 		final Vocabulary labelVocab = new Vocabulary();
 		final Vocabulary perceptVocab = new Vocabulary();
 		final Vocabulary labelFeatureVocab = new Vocabulary();
@@ -153,6 +277,10 @@ public class Model {
 
 		final ArrayList<Triple<Integer, Integer, Float>> coefTuples = new ArrayList<>();
 		float[] coefs = null;
+		final boolean sparse = LRParser.inferenceCoefs.equals("sparse");
+		InferenceCoefs.Sparse sparseCoefs = null;
+		OffHeapCoefs offHeapCoefs = null;
+		boolean offHeap = false;  // decided once the hash bucket count is known
 		
 		try (BufferedReader reader = BasicFileIO.openFileOrResource(modelFile)) {
 			String line;
@@ -187,13 +315,18 @@ public class Model {
 						
 					case NUM_HASH_BUCKETS_HEADER:
 						LRParser.useHashing = true;
-						LRParser.numHashBuckets = Integer.parseInt(parts[1]);
-						coefs = new float[(int) LRParser.numHashBuckets];
+						offHeap = ! sparse && (LRParser.offHeapCoefs || Long.parseLong(parts[1]) > Integer.MAX_VALUE);
+						LRParser.numHashBuckets = Long.parseLong(parts[1]);
+						if (sparse) sparseCoefs = new InferenceCoefs.Sparse((long) LRParser.numHashBuckets);
+						else if (offHeap) offHeapCoefs = new OffHeapCoefs((long) LRParser.numHashBuckets, false);
+						else coefs = new float[(int) LRParser.numHashBuckets];
 						break;
 					case HASH_COEF_HEADER:
-						int featHash = Integer.parseInt(parts[1]);
+						long featHash = Long.parseLong(parts[1]);
 						float val = Float.parseFloat(parts[2]);
-						coefs[featHash] = val;
+						if (sparse) sparseCoefs.put((int) featHash, val);
+						else if (offHeap) offHeapCoefs.set(featHash, val);
+						else coefs[(int) featHash] = val;
 						break;
 						
 					default:
@@ -205,7 +338,13 @@ public class Model {
 		labelFeatureVocab.lock();
 		perceptVocab.lock();
 		
-		if ( ! LRParser.useHashing) {
+		if ( ! LRParser.useHashing && sparse) {
+			sparseCoefs = new InferenceCoefs.Sparse((long) perceptVocab.size() * labelFeatureVocab.size());
+			for (Triple<Integer, Integer, Float> x : coefTuples) {
+				sparseCoefs.put(coefIdx(labelFeatureVocab, x.first, x.second), x.third);
+			}
+		}
+		else if ( ! LRParser.useHashing) {
 			coefs = new float[perceptVocab.size() * labelFeatureVocab.size()];
 			for (Triple<Integer, Integer, Float> x : coefTuples) {
 				coefs[coefIdx(labelFeatureVocab, x.first, x.second)] = x.third;
@@ -215,48 +354,96 @@ public class Model {
 		U.pf("Label feature vocab (size %d): %s\n", labelFeatureVocab.size(), labelVocab.names());
 		U.pf("Num features: %d\n", perceptVocab.size());
 		Model m = new Model(labelVocab, labelFeatureVocab, featuresByLabel, perceptVocab, coefs);
+		if (offHeap) {
+			m.inferenceCoefs = offHeapCoefs;
+			U.pf("Off-heap coefs: %.1f MB\n", offHeapCoefs.bytes()/1e6);
+		}
+		if (sparse) {
+			m.inferenceCoefs = sparseCoefs;
+			U.pf("Sparse coefs: %d stored of %d, %.1f MB\n", sparseCoefs.numStored, sparseCoefs.size(), sparseCoefs.bytes()/1e6);
+		}
 		m.calculateLabelHashes();
 		return m;
 	}
 
 	void save(String modelFile) throws IOException {
 		U.pf("Saving model to %s\n", modelFile);
-		try (PrintWriter out = new PrintWriter(BasicFileIO.openFileToWriteUTF8(modelFile))) {
-			out.append(LABEL_VOCAB_HEADER).append("\t");
-			for (String x : labelVocab.names()) {
-				out.append(x).append(" ");
+		if (LRParser.modelFormat.equals("binary")) {
+			BinaryModelFormat.write(this, new File(modelFile), false);
+		}
+		else {
+			try (PrintWriter out = new PrintWriter(BasicFileIO.openFileToWriteUTF8(modelFile))) {
+				write(out);
 			}
-			out.append("\n");
-			out.append(LABEL_FEATURE_VOCAB_HEADER).append("\t");
-			for (String feature : labelFeatureVocab.names()) {
-				out.append(feature).append(" ");
+		}
+		U.pf("Done saving model\n");
+	}
+
+	/**
+	 * Like save(), but crash-safe: written to a temp file, fsync'd, then renamed into place and the directory fsync'd,
+	 * so modelFile is always either the old complete model or the new one.  Doesn't log, since it runs in the background.
+	 */
+	void saveDurably(String modelFile) throws IOException {
+		File tmp = new File(modelFile + ".tmp");
+		if (LRParser.modelFormat.equals("binary")) {
+			BinaryModelFormat.write(this, tmp, true);
+		}
+		else {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				OutputStream os = new BufferedOutputStream(fos, 1<<16);
+				if (modelFile.endsWith(".gz")) os = new GZIPOutputStream(os);
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+				write(out);
+				out.flush();
+				if (os instanceof GZIPOutputStream) ((GZIPOutputStream) os).finish();
+				os.flush();
+				if (out.checkError()) throw new IOException("error writing " + tmp);
+				fos.getFD().sync();
 			}
-			out.append("\n");
-			for (int[] featureIdxs : featuresByLabel) {
-				out.append(FEATURES_BY_LABEL_HEADER).append("\t");
-				for (int featureIdx : featureIdxs) {
-					out.append(Integer.toString(featureIdx)).append(" ");
-				}
-				out.append("\n");
+		}
+		Path path = Paths.get(modelFile).toAbsolutePath();
+		Files.move(tmp.toPath(), path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		// the rename itself is only durable once the directory entry is on disk
+		try (FileChannel dir = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
+			dir.force(true);
+		}
+	}
+
+	private void write(PrintWriter out) {
+		out.append(LABEL_VOCAB_HEADER).append("\t");
+		for (String x : labelVocab.names()) {
+			out.append(x).append(" ");
+		}
+		out.append("\n");
+		out.append(LABEL_FEATURE_VOCAB_HEADER).append("\t");
+		for (String feature : labelFeatureVocab.names()) {
+			out.append(feature).append(" ");
+		}
+		out.append("\n");
+		for (int[] featureIdxs : featuresByLabel) {
+			out.append(FEATURES_BY_LABEL_HEADER).append("\t");
+			for (int featureIdx : featureIdxs) {
+				out.append(Integer.toString(featureIdx)).append(" ");
 			}
-			if (LRParser.useHashing) {
-				out.printf("%s\t%d\n", NUM_HASH_BUCKETS_HEADER, (int) LRParser.numHashBuckets);
-				assert LRParser.numHashBuckets == coefs.length;
-				for (int h=0; h < coefs.length; h++) {
-					if (Math.abs(coefs[h]) < MINIMUM_WEIGHT_THRESHOLD) continue;
-					out.printf("%s\t%d\t%s\n", HASH_COEF_HEADER, h, coefs[h]);
-				}
+			out.append("\n");
+		}
+		if (LRParser.useHashing) {
+			out.printf("%s\t%d\n", NUM_HASH_BUCKETS_HEADER, (long) LRParser.numHashBuckets);
+			assert LRParser.numHashBuckets == numCoefs();
+			for (long h=0; h < numCoefs(); h++) {
+				float coef = coef(h);
+				if (Math.abs(coef) < MINIMUM_WEIGHT_THRESHOLD) continue;
+				out.printf("%s\t%d\t%s\n", HASH_COEF_HEADER, h, coef);
 			}
-			else {
-				for (int f = 0; f < perceptVocab.size(); f++) {
-					for (int k = 0; k < labelFeatureVocab.size(); k++) {
-						float coef = coefs[coefIdx(f, k)];
-						if (Math.abs(coef) < MINIMUM_WEIGHT_THRESHOLD) continue; // throw out parameters below threshold
-						out.printf("%s\t%s\t%s\t%s\n", COEFFICIENTS_HEADER, perceptVocab.name(f), labelFeatureVocab.name(k), coef);
-					}
+		}
+		else {
+			for (int f = 0; f < perceptVocab.size(); f++) {
+				for (int k = 0; k < labelFeatureVocab.size(); k++) {
+					float coef = coef(coefIdx(f, k));
+					if (Math.abs(coef) < MINIMUM_WEIGHT_THRESHOLD) continue; // throw out parameters below threshold
+					out.printf("%s\t%s\t%s\t%s\n", COEFFICIENTS_HEADER, perceptVocab.name(f), labelFeatureVocab.name(k), coef);
 				}
 			}
 		}
-		U.pf("Done saving model\n");
 	}
 }
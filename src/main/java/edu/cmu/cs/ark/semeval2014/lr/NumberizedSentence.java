@@ -22,14 +22,13 @@ public class NumberizedSentence {
 		perceptnums[nnz] = perceptnum;
 		values[nnz] = (float) value;
 		nnz++;
-		totalNNZ++;
 	}
 	int i(int kk) { return iIndexes[kk]; }
 	int j(int kk) { return jIndexes[kk]; }
 	int perceptnum(int kk) { return perceptnums[kk]; }
 	float value(int kk) { return values[kk]; }
 	
-	static long totalNNZ = 0;  // only for diagnosis
+	static long totalNNZ = 0;  // only for diagnosis.  counted as sentences are written to the feature cache.
 	
 	static final int INIT_SIZE = 100;
 	static final double GROWTH_MULTIPLIER = 1.5;
@@ -75,6 +74,29 @@ public class NumberizedSentence {
 		return y;
 	}
 
+	/** Empties this sentence and gives it length T, with room for at least 'capacity' values.  Reuses the arrays if they're big enough. */
+	void reset(int sentenceLength, int capacity) {
+		T = sentenceLength;
+		nnz = 0;
+		if (iIndexes.length < capacity) {
+			int newCapacity = Math.max(capacity, (int) Math.floor(GROWTH_MULTIPLIER * iIndexes.length));
+			iIndexes = new int[newCapacity];
+			jIndexes = new int[newCapacity];
+			perceptnums = new int[newCapacity];
+			values = new float[newCapacity];
+		}
+	}
+
+	/** Makes this a copy of 'other', reusing the arrays if they're big enough. */
+	void copyFrom(NumberizedSentence other) {
+		reset(other.T, other.nnz);
+		System.arraycopy(other.iIndexes, 0, iIndexes, 0, other.nnz);
+		System.arraycopy(other.jIndexes, 0, jIndexes, 0, other.nnz);
+		System.arraycopy(other.perceptnums, 0, perceptnums, 0, other.nnz);
+		System.arraycopy(other.values, 0, values, 0, other.nnz);
+		nnz = other.nnz;
+	}
+
 	void growIfNecessary() {
 		int curCapacity = iIndexes.length;
 		if (nnz == curCapacity) {
@@ -0,0 +1,94 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Coefs in direct memory, outside the Java heap, indexed by long: for -offHeapCoefs, and for loading models with
+ * 2^31 or more hash buckets, which don't fit in a float[].  The GC never scans or copies them.
+ * Direct memory is capped by -XX:MaxDirectMemorySize (by default, the max heap size), so raise that to fit.
+ *
+ * For training, coef f's adagrad history is kept next to it, like in FusedAdagrad: [2f] = coef f, [2f+1] = its history.
+ * For inference, it's just the coefs.  The arithmetic is the same as LRParser's float[] path, so results are identical.
+ *
+ * A single direct buffer can't hold more than 2GB, so the storage is a series of segments of 2^SEGMENT_BITS coefs each.
+ */
+class OffHeapCoefs extends InferenceCoefs {
+	static final int SEGMENT_BITS = 26;
+	static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	final long size;
+	/** 2 with the adagrad history, 1 without */
+	final int stride;
+	final FloatBuffer[] segments;
+
+	OffHeapCoefs(long size, boolean withHistory) {
+		this.size = size;
+		stride = withHistory ? 2 : 1;
+		int numSegments = (int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+		segments = new FloatBuffer[numSegments];
+		for (int s=0; s<numSegments; s++) {
+			long n = Math.min(1L << SEGMENT_BITS, size - ((long) s << SEGMENT_BITS));
+			// direct buffers start zeroed
+			segments[s] = ByteBuffer.allocateDirect((int) (4 * stride * n)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	private FloatBuffer segment(long f) { return segments[(int) (f >>> SEGMENT_BITS)]; }
+	private int offset(long f) { return (int) (f & SEGMENT_MASK) * stride; }
+
+	@Override
+	float get(long f) {
+		return segment(f).get(offset(f));
+	}
+
+	void set(long f, float value) {
+		segment(f).put(offset(f), value);
+	}
+
+	/** same as LRParser.adagradStoreRate() */
+	double adagradStoreRate(long f, double g) {
+		assert stride == 2 : "no adagrad history";
+		final FloatBuffer seg = segment(f);
+		final int h = offset(f) + 1;
+		float ss = (float) (seg.get(h) + g*g);
+		seg.put(h, ss);
+		if (ss < 1e-2) return 10.0; // 1/sqrt(.01)
+		return 1.0 / Math.sqrt(ss);
+	}
+
+	/** one adagrad step on coef f with gradient g, like LRParser.updateExampleLogReg() */
+	void update(long f, double g) {
+		double rate = adagradStoreRate(f, g);
+		set(f, (float) (get(f) + LRParser.learningRate * rate * g));
+	}
+
+	/** same as LRParser.l2Step() */
+	double l2Step(long f) {
+		final float w = get(f);
+		double logprior = -0.5 * LRParser.l2reg * w*w;
+		double g = LRParser.l2reg * w;
+		set(f, (float) (w - adagradStoreRate(f,g) * LRParser.learningRate * g));
+		return logprior;
+	}
+
+	/** the end-of-iteration L2 sweep over every coef.  Returns the logprior. */
+	double l2StepAll() {
+		double ll = 0;
+		for (long f=0; f<size; f++) {
+			ll += l2Step(f);
+		}
+		return ll;
+	}
+
+	@Override
+	long size() {
+		return size;
+	}
+
+	@Override
+	long bytes() {
+		return 4L * stride * size;
+	}
+}
@@ -0,0 +1,252 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.U;
+
+/**
+ * Feature cache that keeps sentences in RAM, each packed into a byte[], up to a memory budget.
+ * Sentences past the budget are spilled, in the same packed form, to a file that's streamed back every iteration.
+ * 
+ * Packed sentence format:
+ *   varint T, varint nnz, byte hasValues
+ *   per nonzero: zigzag varint of the change in pair code (i*T + j) since the previous nonzero,
+ *                then zigzag varint of the perceptnum (which can be negative under hashing)
+ *   if hasValues: float[nnz] values.  Omitted when every value is 1.0, the common case.
+ * Nonzeros come in runs sharing the same (i,j), so most pair deltas take one byte.
+ */
+class PackedFeatureCache extends FeatureCache {
+	/** a guess at the JVM's per-array overhead, for the memory budget */
+	static final int ARRAY_OVERHEAD_BYTES = 16;
+
+	final String spillFile;
+	final long memoryBudgetBytes;
+
+	final List<byte[]> inMemory = new ArrayList<>();
+	long inMemoryBytes = 0;
+	DataOutputStream spillOutput;
+	int numSpilled = 0;
+	long spilledBytes = 0;
+	long unpackedBytes = 0;
+
+	final Packer packer = new Packer();
+	int nextSentence = 0;
+	DataInputStream spillInput;
+	byte[] spillBuffer = new byte[1<<16];
+	final ThreadLocal<NumberizedSentence> reusedSentence = new ThreadLocal<NumberizedSentence>() {
+		@Override
+		protected NumberizedSentence initialValue() {
+			return new NumberizedSentence(0);
+		}
+	};
+
+	PackedFeatureCache(String spillFile, long memoryBudgetBytes) {
+		this.spillFile = spillFile;
+		this.memoryBudgetBytes = memoryBudgetBytes;
+	}
+
+	@Override
+	void write(NumberizedSentence ns) {
+		byte[] packed = packer.pack(ns);
+		unpackedBytes += 4 + 4 + 16L*ns.nnz;  // what the arrays of a plain NumberizedSentence hold
+		if (spillOutput == null && inMemoryBytes + packed.length + ARRAY_OVERHEAD_BYTES <= memoryBudgetBytes) {
+			inMemory.add(packed);
+			inMemoryBytes += packed.length + ARRAY_OVERHEAD_BYTES;
+			return;
+		}
+		// once one sentence spills, all later ones do too, so reading stays in order.
+		try {
+			if (spillOutput == null) {
+				spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1<<16));
+			}
+			spillOutput.writeInt(packed.length);
+			spillOutput.write(packed);
+		} catch (IOException e) {
+			throw new RuntimeException("couldn't spill to feature cache file " + spillFile, e);
+		}
+		numSpilled++;
+		spilledBytes += 4 + packed.length;
+	}
+
+	@Override
+	void finishWriting() throws IOException {
+		if (spillOutput != null) {
+			spillOutput.close();
+			spillOutput = null;
+		}
+		int n = inMemory.size() + numSpilled;
+		U.pf("Packed feature cache: %.1f bytes/sent packed vs %.1f unpacked.  %d/%d sentences in memory (%.1f MB), hit ratio %.3f; %d spilled to %s (%.1f MB)\n",
+				(inMemoryBytes + spilledBytes)*1.0/n, unpackedBytes*1.0/n,
+				inMemory.size(), n, inMemoryBytes/1e6, inMemory.size()*1.0/n,
+				numSpilled, spillFile, spilledBytes/1e6);
+	}
+
+	@Override
+	void startIteration() throws IOException {
+		nextSentence = 0;
+		if (spillInput != null) {
+			spillInput.close();
+			spillInput = null;
+		}
+		if (numSpilled > 0) {
+			spillInput = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1<<16));
+		}
+	}
+
+	@Override
+	NumberizedSentence next() {
+		NumberizedSentence ns = reusedSentence.get();
+		if (nextSentence < inMemory.size()) {
+			byte[] packed = inMemory.get(nextSentence++);
+			Packer.unpack(packed, ns);
+			return ns;
+		}
+		nextSentence++;
+		try {
+			int len = spillInput.readInt();
+			if (spillBuffer.length < len) {
+				spillBuffer = Arrays.copyOf(spillBuffer, Math.max(len, 2*spillBuffer.length));
+			}
+			spillInput.readFully(spillBuffer, 0, len);
+		} catch (IOException e) {
+			throw new RuntimeException("couldn't read feature cache spill file " + spillFile, e);
+		}
+		Packer.unpack(spillBuffer, ns);
+		return ns;
+	}
+
+	/** random access only works when nothing was spilled, since the spill file is a stream. */
+	@Override
+	boolean supportsRandomAccess() {
+		return numSpilled == 0;
+	}
+
+	@Override
+	NumberizedSentence get(int position) {
+		assert numSpilled == 0;
+		NumberizedSentence ns = reusedSentence.get();
+		Packer.unpack(inMemory.get(position), ns);
+		return ns;
+	}
+
+	@Override
+	long sizeInBytes() {
+		return inMemoryBytes + new File(spillFile).length();
+	}
+
+	@Override
+	void delete() throws IOException {
+		inMemory.clear();
+		if (spillInput != null) {
+			spillInput.close();
+			spillInput = null;
+		}
+		Files.deleteIfExists(Paths.get(spillFile));
+	}
+
+	/** Variable-length encoding of NumberizedSentences.  Encoding reuses one scratch buffer, so it's not thread safe. */
+	static class Packer {
+		byte[] buf = new byte[1<<12];
+		int pos;
+
+		byte[] pack(NumberizedSentence ns) {
+			pos = 0;
+			boolean hasValues = false;
+			for (int kk=0; kk<ns.nnz; kk++) {
+				if (ns.value(kk) != 1.0f) {
+					hasValues = true;
+					break;
+				}
+			}
+			writeVarint(ns.T);
+			writeVarint(ns.nnz);
+			ensureRoom(1);
+			buf[pos++] = (byte) (hasValues ? 1 : 0);
+			int prevPair = 0;
+			for (int kk=0; kk<ns.nnz; kk++) {
+				int pair = ns.i(kk)*ns.T + ns.j(kk);
+				writeVarint(zigzag(pair - prevPair));
+				writeVarint(zigzag(ns.perceptnum(kk)));
+				prevPair = pair;
+			}
+			if (hasValues) {
+				for (int kk=0; kk<ns.nnz; kk++) {
+					int bits = Float.floatToRawIntBits(ns.value(kk));
+					ensureRoom(4);
+					buf[pos++] = (byte) (bits >>> 24);
+					buf[pos++] = (byte) (bits >>> 16);
+					buf[pos++] = (byte) (bits >>> 8);
+					buf[pos++] = (byte) bits;
+				}
+			}
+			return Arrays.copyOf(buf, pos);
+		}
+
+		void ensureRoom(int n) {
+			if (pos + n > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(pos + n, 2*buf.length));
+			}
+		}
+
+		void writeVarint(int x) {
+			ensureRoom(5);
+			while ((x & ~0x7F) != 0) {
+				buf[pos++] = (byte) ((x & 0x7F) | 0x80);
+				x >>>= 7;
+			}
+			buf[pos++] = (byte) x;
+		}
+
+		static int zigzag(int x) { return (x << 1) ^ (x >> 31); }
+		static int unzigzag(int x) { return (x >>> 1) ^ -(x & 1); }
+
+		/** decode into ns, reusing its arrays. */
+		static void unpack(byte[] b, NumberizedSentence ns) {
+			int[] p = { 0 };
+			int T = readVarint(b, p);
+			int nnz = readVarint(b, p);
+			boolean hasValues = b[p[0]++] != 0;
+			ns.reset(T, nnz);
+			int pair = 0;
+			for (int kk=0; kk<nnz; kk++) {
+				pair += unzigzag(readVarint(b, p));
+				ns.iIndexes[kk] = pair / T;
+				ns.jIndexes[kk] = pair % T;
+				ns.perceptnums[kk] = unzigzag(readVarint(b, p));
+			}
+			if (hasValues) {
+				int q = p[0];
+				for (int kk=0; kk<nnz; kk++) {
+					int bits = ((b[q] & 0xFF) << 24) | ((b[q+1] & 0xFF) << 16) | ((b[q+2] & 0xFF) << 8) | (b[q+3] & 0xFF);
+					ns.values[kk] = Float.intBitsToFloat(bits);
+					q += 4;
+				}
+			}
+			else {
+				Arrays.fill(ns.values, 0, nnz, 1.0f);
+			}
+			ns.nnz = nnz;
+		}
+
+		static int readVarint(byte[] b, int[] p) {
+			int x = 0;
+			for (int shift=0; ; shift += 7) {
+				byte cur = b[p[0]++];
+				x |= (cur & 0x7F) << shift;
+				if ((cur & 0x80) == 0) return x;
+			}
+		}
+	}
+}
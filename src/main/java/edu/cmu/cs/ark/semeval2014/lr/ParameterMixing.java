@@ -0,0 +1,366 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Iterative parameter mixing (McDonald, Hall and Mann 2010, http://aclweb.org/anthology/N10-1069) across local processes,
+ * for -mixWorkers N.
+ *
+ * The coordinator is the process started by the user.  It does the usual setup (preprocessor, top classifier, label vocab),
+ * then launches N worker JVMs with the same command line plus -mixWorkerId.  Each worker loads the preprocessor models
+ * the coordinator saved, trains on every N'th sentence, and after every iter writes its coefs and adagrad history to -mixDir.
+ * The coordinator averages them, writes the average back for the workers to continue from, and does the model saving.
+ *
+ * Needs -useHashing, so that every worker indexes the coefs the same way regardless of which percepts its shard has.
+ * A worker waiting for a mix gives up if the coordinator has died, checked via its pid (see coordinatorAlive()).
+ */
+class ParameterMixing {
+	static final int MAGIC = 0x53445049;
+	static final long POLL_MILLIS = 100;
+	/** how often a waiting worker checks that the coordinator is still alive */
+	static final long COORDINATOR_CHECK_MILLIS = 2000;
+	/** floats per read/write chunk */
+	static final int IO_CHUNK = 1 << 20;
+
+	static boolean isWorker() {
+		return LRParser.mixWorkerId >= 0;
+	}
+
+	/** under -mixWorkers, this process's share of the given sentence order: every N'th position.  Otherwise all of it. */
+	static List<Integer> myShard(List<Integer> sentenceOrder) {
+		if ( ! isWorker()) return sentenceOrder;
+		List<Integer> shard = new ArrayList<>();
+		for (int pos = LRParser.mixWorkerId; pos < sentenceOrder.size(); pos += LRParser.mixWorkers) {
+			shard.add(sentenceOrder.get(pos));
+		}
+		return shard;
+	}
+
+	/** the arrays that make up the training state, in a fixed order.  They get averaged elementwise. */
+	static float[][] trainingState() {
+		if (LRParser.fused != null) {
+			return new float[][] { LRParser.fused.w };
+		}
+		return new float[][] { LRParser.model.coefs, LRParser.ssGrad };
+	}
+
+	static File workerFile(int workerId, int iter) {
+		return new File(LRParser.mixDir, U.sf("worker%d.iter%d", workerId, iter));
+	}
+
+	static File mixFile(int iter) {
+		return new File(LRParser.mixDir, U.sf("mix.iter%d", iter));
+	}
+
+	/**
+	 * Worker side, at the end of each iter: publish this worker's state, then (unless it was the last iter)
+	 * wait for the coordinator's average and continue from it.
+	 */
+	static void workerExchange(int iter, double ll) throws IOException {
+		LRParser.flushLazyL2();
+		writeState(workerFile(LRParser.mixWorkerId, iter), ll, trainingState());
+		if (iter == LRParser.numIters - 1) return;
+		File mixed = mixFile(iter);
+		U.pf("waiting for mix %s  ", mixed);
+		waitForMix(mixed);
+		readState(mixed, trainingState());
+	}
+
+	/**
+	 * Coordinator side: replaces trainingOuterLoopOnline().  Launches the workers and averages their states every iter.
+	 */
+	static void coordinate(String[] commandLineArgs) throws IOException {
+		final int N = LRParser.mixWorkers;
+		new File(LRParser.mixDir).mkdirs();
+		LRParser.allocateCoefs();
+		final List<Process> workers = launchWorkers(commandLineArgs);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				for (Process p : workers) p.destroy();
+			}
+		});
+
+		final float[][] mixed = trainingState();
+		float[][] scratch = new float[mixed.length][];
+		for (int a=0; a < mixed.length; a++) {
+			scratch[a] = new float[mixed[a].length];
+		}
+		for (int outer=0; outer < LRParser.numIters; outer++) {
+			double t0 = System.currentTimeMillis();
+			double ll = 0;
+			for (int w=0; w < N; w++) {
+				File f = workerFile(w, outer);
+				waitForFile(f, workers, w);
+				ll += w==0 ? readState(f, mixed) : readState(f, scratch);
+				if (w > 0) {
+					for (int a=0; a < mixed.length; a++) {
+						for (int i=0; i < mixed[a].length; i++) mixed[a][i] += scratch[a][i];
+					}
+				}
+				Files.delete(f.toPath());
+			}
+			final float scale = 1.0f / N;
+			for (float[] arr : mixed) {
+				for (int i=0; i < arr.length; i++) arr[i] *= scale;
+			}
+			if (outer < LRParser.numIters - 1) {
+				writeState(mixFile(outer), ll, mixed);
+			}
+			if (outer > 0) {
+				// every worker has finished reading the previous mix, since it's written this iter's state
+				Files.deleteIfExists(mixFile(outer-1).toPath());
+			}
+			double dur = System.currentTimeMillis() - t0;
+			U.pf("iter %3d ll %.1f (summed over %d workers)  mixing waited %.1f sec\n", outer, ll, N, dur/1000);
+			if (LRParser.saveEvery >= 0 && outer % LRParser.saveEvery == 0) {
+				LRParser.saveModel(U.sf("%s.iter%s", LRParser.modelFile, outer), LRParser.asyncSave);
+			}
+		}
+		for (int w=0; w < N; w++) {
+			try {
+				int status = workers.get(w).waitFor();
+				if (status != 0) throw new RuntimeException(U.sf("mixing worker %d exited with status %d, see %s", w, status, logFile(w)));
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted waiting for mixing workers", e);
+			}
+		}
+	}
+
+	static File logFile(int workerId) {
+		return new File(LRParser.mixDir, U.sf("worker%d.log", workerId));
+	}
+
+	/** same JVM, classpath, and arguments as this process, plus the worker id. */
+	static List<Process> launchWorkers(String[] commandLineArgs) throws IOException {
+		final String classpath = workerClasspath();
+		List<Process> workers = new ArrayList<>();
+		for (int w=0; w < LRParser.mixWorkers; w++) {
+			List<String> cmd = new ArrayList<>();
+			cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			cmd.addAll(workerJvmArgs());
+			cmd.add("-cp");
+			cmd.add(classpath);
+			cmd.add(LRParser.class.getName());
+			cmd.addAll(Arrays.asList(commandLineArgs));
+			cmd.add("-mixWorkerId");
+			cmd.add(Integer.toString(w));
+			cmd.add("-mixCoordinatorPid");
+			cmd.add(Integer.toString(myPid()));
+			U.pf("Launching mixing worker %d, log in %s\n", w, logFile(w));
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(logFile(w));
+			workers.add(pb.start());
+		}
+		return workers;
+	}
+
+	/**
+	 * The JVM options the workers inherit: heap and stack sizes, assertions, and system properties.
+	 * Not the rest, e.g. -agentlib:jdwp, whose debugger port the workers would fight over, or -XX:HeapDumpPath.
+	 */
+	static List<String> workerJvmArgs() {
+		List<String> args = new ArrayList<>();
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (arg.matches("-Xm[xs].*|-Xss.*|-D.*|-(ea|enableassertions|da|disableassertions)(:.*)?")) {
+				args.add(arg);
+			}
+		}
+		return args;
+	}
+
+	/** this JVM's pid, from the "pid@host" name HotSpot and most other JVMs give it, or -1 if it isn't in that form. */
+	static int myPid() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.indexOf('@')));
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Whether the -mixCoordinatorPid process is still running: /proc/pid on Linux, or else "kill -0 pid".
+	 * Assumed alive if its pid is unknown.
+	 */
+	static boolean coordinatorAlive() {
+		final int pid = LRParser.mixCoordinatorPid;
+		if (pid < 0) return true;
+		if (new File("/proc/self").isDirectory()) {
+			return new File("/proc/" + pid).isDirectory();
+		}
+		try {
+			return new ProcessBuilder("kill", "-0", Integer.toString(pid)).start().waitFor() == 0;
+		} catch (IOException e) {
+			return true;  // no way to tell
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted checking on the mixing coordinator", e);
+		}
+	}
+
+	/** worker side: poll for the coordinator's mix, giving up if the coordinator has died without writing it. */
+	static void waitForMix(File mixed) {
+		long lastCheck = System.currentTimeMillis();
+		while ( ! mixed.exists()) {
+			if (System.currentTimeMillis() - lastCheck >= COORDINATOR_CHECK_MILLIS) {
+				if ( ! coordinatorAlive() && ! mixed.exists()) {
+					throw new RuntimeException(U.sf("mixing coordinator (pid %d) is gone, giving up waiting for %s", LRParser.mixCoordinatorPid, mixed));
+				}
+				lastCheck = System.currentTimeMillis();
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted waiting for " + mixed, e);
+			}
+		}
+	}
+
+	/**
+	 * -mixClasspath, or else java.class.path plus the jars and directories of the class loaders that loaded LRParser.
+	 * java.class.path alone isn't enough under sbt run-main without fork: it's just sbt's launcher jar,
+	 * and the project's classes and libraries come from URLClassLoaders sbt sets up.
+	 */
+	static String workerClasspath() {
+		if (LRParser.mixClasspath != null) return LRParser.mixClasspath;
+		Set<String> entries = new LinkedHashSet<>(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+		addLoaderEntries(LRParser.class.getClassLoader(), entries);
+		addLoaderEntries(Thread.currentThread().getContextClassLoader(), entries);
+		StringBuilder sb = new StringBuilder();
+		for (String entry : entries) {
+			if (entry.isEmpty()) continue;
+			if (sb.length() > 0) sb.append(File.pathSeparator);
+			sb.append(entry);
+		}
+		return sb.toString();
+	}
+
+	/** add the local files of loader's URLs, and its parents', parents first. */
+	static void addLoaderEntries(ClassLoader loader, Set<String> entries) {
+		List<URLClassLoader> chain = new ArrayList<>();
+		for (ClassLoader l = loader; l != null; l = l.getParent()) {
+			if (l instanceof URLClassLoader) chain.add((URLClassLoader) l);
+		}
+		Collections.reverse(chain);
+		for (URLClassLoader l : chain) {
+			for (URL url : l.getURLs()) {
+				if ( ! url.getProtocol().equals("file")) continue;
+				try {
+					entries.add(new File(url.toURI()).getPath());
+				} catch (URISyntaxException e) {
+					throw new RuntimeException("bad classpath URL " + url, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * coordinator side: poll for a worker's file to appear.  Files are only ever renamed into place complete, so existence means it's ready.
+	 * Gives up if a worker has failed, or if the worker that's supposed to write f has exited without writing it.
+	 */
+	static void waitForFile(File f, List<Process> workers, int writerId) {
+		while ( ! f.exists()) {
+			for (int w=0; w < workers.size(); w++) {
+				try {
+					int status = workers.get(w).exitValue();
+					if (status != 0 || (w == writerId && ! f.exists())) {
+						throw new RuntimeException(U.sf("mixing worker %d exited early with status %d, see %s", w, status, logFile(w)));
+					}
+				} catch (IllegalThreadStateException stillRunning) {
+				}
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted waiting for " + f, e);
+			}
+		}
+	}
+
+	/** format: int magic, double ll, int #arrays, then for each: int length, floats.  Written to a temp file then renamed. */
+	static void writeState(File f, double ll, float[][] arrays) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+				FileChannel ch = raf.getChannel()) {
+			raf.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putDouble(ll).putInt(arrays.length);
+			header.flip();
+			writeFully(ch, header);
+			ByteBuffer buf = ByteBuffer.allocateDirect(4 * IO_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+			for (float[] arr : arrays) {
+				ByteBuffer len = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				len.putInt(arr.length).flip();
+				writeFully(ch, len);
+				for (int off=0; off < arr.length; off += IO_CHUNK) {
+					int n = Math.min(IO_CHUNK, arr.length - off);
+					buf.clear();
+					buf.asFloatBuffer().put(arr, off, n);
+					buf.limit(4*n);
+					writeFully(ch, buf);
+				}
+			}
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** read a state file into the given arrays, which must have the saved lengths.  Returns the saved ll. */
+	static double readState(File f, float[][] arrays) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+				FileChannel ch = raf.getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(ch, header);
+			if (header.getInt() != MAGIC) throw new IOException("not a parameter mixing state file: " + f);
+			double ll = header.getDouble();
+			if (header.getInt() != arrays.length) throw new IOException("wrong number of arrays in " + f);
+			ByteBuffer buf = ByteBuffer.allocateDirect(4 * IO_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+			for (float[] arr : arrays) {
+				ByteBuffer len = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				readFully(ch, len);
+				if (len.getInt() != arr.length) throw new IOException("array length mismatch in " + f);
+				for (int off=0; off < arr.length; off += IO_CHUNK) {
+					int n = Math.min(IO_CHUNK, arr.length - off);
+					buf.clear();
+					buf.limit(4*n);
+					readFully(ch, buf);
+					FloatBuffer fb = buf.asFloatBuffer();
+					fb.get(arr, off, n);
+				}
+			}
+			return ll;
+		}
+	}
+
+	static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) ch.write(buf);
+	}
+
+	/** fills buf, then flips it for reading */
+	static void readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf) < 0) throw new IOException("unexpected end of parameter mixing state file");
+		}
+		buf.flip();
+	}
+}
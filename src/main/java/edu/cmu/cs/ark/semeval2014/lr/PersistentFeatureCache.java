@@ -0,0 +1,318 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+import util.Vocabulary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.cmu.cs.ark.semeval2014.lr.fe.FE;
+
+/**
+ * -persistentCacheDir: keeps the feature cache and its percept vocab after training, to be reused by later runs
+ * that would extract exactly the same features.
+ *
+ * Each cache lives in a directory named by a hash of everything its contents depend on: the -depInput file's bytes,
+ * the class files of the feature extractors, LRParser (which numberizes the features), NumberizedSentence and the cache format's
+ * class, the pruning decisions, the hashing options, and which sentences are in it.  Changes to extraction code outside those
+ * classes aren't detected; bump FEATURE_EXTRACTION_VERSION for those.
+ *
+ * A cache is written into a private ".partial" directory and renamed into place once complete, so a directory under
+ * its final name is always complete.  After each run, the least recently used caches are evicted to stay under -persistentCacheMaxGB.
+ *
+ * Runs can share the directory.  A run holds a shared lock on its key's lock file (next to the cache directory, <key>.lock)
+ * from before it looks for its cache until it exits, and eviction only deletes a cache it can lock exclusively,
+ * so a cache that another run is reading or writing is never evicted out from under it.
+ */
+class PersistentFeatureCache {
+	/** bump when LRParser.extractFeatures() or its feature adders change what they produce. */
+	static final int FEATURE_EXTRACTION_VERSION = 1;
+	static final String FEATURES_FILE = "features";
+	static final String META_FILE = "meta";
+
+	/** hex digest of everything the cache contents depend on. */
+	static String key;
+	/** human-readable version of what went into the key, kept in the meta file. */
+	static String keyDescription;
+	/** this run's shared lock on its key; released when the process exits. */
+	static FileChannel sharedLock;
+
+	static File entryDir() {
+		return new File(LRParser.persistentCacheDir, key);
+	}
+
+	static File partialDir() {
+		return new File(LRParser.persistentCacheDir, key + ".partial." + MiscUtil.getProcessId("bla"));
+	}
+
+	/** where the first pass should write the cache. */
+	static String partialFeatureFile() {
+		File dir = partialDir();
+		dir.mkdirs();
+		return new File(dir, FEATURES_FILE).getPath();
+	}
+
+	static void computeKey() throws IOException {
+		MessageDigest md = sha1();
+		StringBuilder desc = new StringBuilder();
+		addToKey(md, desc, "version", Integer.toString(FEATURE_EXTRACTION_VERSION));
+		addToKey(md, desc, "depInput", fileDigest(new File(LRParser.featureDepFile())));
+		for (FE.FeatureExtractor fe : LRParser.initializeFeatureExtractors()) {
+			addToKey(md, desc, fe.getClass().getName(), classDigest(fe.getClass()));
+		}
+		addToKey(md, desc, "tokenAdder", classDigest(LRParser.TokenFeatAdder.class));
+		addToKey(md, desc, "edgeAdder", classDigest(LRParser.EdgeFeatAdder.class));
+		addToKey(md, desc, "parser", classDigest(LRParser.class));
+		addToKey(md, desc, "sentence", classDigest(NumberizedSentence.class));
+		addToKey(md, desc, "cacheClass", classDigest(cacheClass()));
+		addToKey(md, desc, "maxEdgeDistance", Integer.toString(LRParser.maxEdgeDistance));
+		addToKey(md, desc, "singletonPruneThresh", Double.toString(LRParser.singletonPruneThresh));
+		addToKey(md, desc, "pruning", pruningDigest());
+		addToKey(md, desc, "useHashing", Boolean.toString(LRParser.useHashing));
+		addToKey(md, desc, "numHashBuckets", Double.toString(LRParser.numHashBuckets));
+		addToKey(md, desc, "featureCacheFormat", LRParser.featureCacheFormat);
+		List<Integer> sentences = new ArrayList<>(LRParser.sentenceIndexOrder);
+		Collections.sort(sentences);
+		addToKey(md, desc, "sentences", hex(sha1(sentences.toString().getBytes("UTF-8"))));
+		key = hex(md.digest());
+		keyDescription = desc.toString();
+	}
+
+	static File lockFile(String key) {
+		return new File(LRParser.persistentCacheDir, key + ".lock");
+	}
+
+	/**
+	 * Take a shared lock on this run's key, before checking for or writing its cache.  Waits if another run is evicting it,
+	 * in which case exists() will then say it's gone.
+	 */
+	static void lockShared() throws IOException {
+		if (sharedLock != null) return;
+		new File(LRParser.persistentCacheDir).mkdirs();
+		FileChannel ch = FileChannel.open(lockFile(key).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ch.lock(0, Long.MAX_VALUE, true);
+		sharedLock = ch;
+	}
+
+	/** whether a complete cache with this key exists. */
+	static boolean exists() {
+		return new File(entryDir(), META_FILE).exists();
+	}
+
+	/**
+	 * Open the stored cache for reading.  Sets what the first pass would have: the percept vocab, the sentence order
+	 * the cache was written in, and the diagnostic counts.
+	 */
+	static FeatureCache open() throws IOException {
+		File meta = new File(entryDir(), META_FILE);
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(meta)))) {
+			in.readUTF();  // key description
+			Vocabulary storedPercepts = (Vocabulary) in.readObject();
+			int[] order = (int[]) in.readObject();
+			LRParser.numPairs.set(in.readLong());
+			LRParser.numTokens = in.readLong();
+			NumberizedSentence.totalNNZ = in.readLong();
+
+			for (String percept : storedPercepts.names()) {
+				LRParser.model.perceptVocab.num(percept);
+			}
+			assert LRParser.model.perceptVocab.size() == storedPercepts.size();
+			List<Integer> sentenceOrder = new ArrayList<>(order.length);
+			for (int snum : order) sentenceOrder.add(snum);
+			LRParser.sentenceIndexOrder = sentenceOrder;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("bad persistent cache metadata in " + meta, e);
+		}
+		meta.setLastModified(System.currentTimeMillis());  // for LRU eviction
+		return openFeatures(entryDir());
+	}
+
+	/** the FeatureCache implementation -featureCacheFormat writes. */
+	static Class<? extends FeatureCache> cacheClass() {
+		return LRParser.featureCacheFormat.equals("mapped") ? MappedFeatureCache.class : KryoFeatureCache.class;
+	}
+
+	static FeatureCache openFeatures(File dir) throws IOException {
+		String file = new File(dir, FEATURES_FILE).getPath();
+		return LRParser.featureCacheFormat.equals("mapped") ? MappedFeatureCache.openForReading(file) : KryoFeatureCache.openForReading(file);
+	}
+
+	/**
+	 * After the first pass has written and finished the cache in partialDir(): store the metadata and move it into place.
+	 * Returns the cache reopened from its permanent location.
+	 * If another run stored the same key meanwhile, ours is dropped and theirs (which has the same contents) is used.
+	 */
+	static FeatureCache commit(FeatureCache written) throws IOException {
+		File partial = partialDir();
+		File meta = new File(partial, META_FILE);
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(meta)))) {
+			out.writeUTF(keyDescription);
+			out.writeObject(LRParser.model.perceptVocab);
+			int[] order = new int[LRParser.sentenceIndexOrder.size()];
+			for (int pos=0; pos<order.length; pos++) order[pos] = LRParser.sentenceIndexOrder.get(pos);
+			out.writeObject(order);
+			out.writeLong(LRParser.numPairs.get());
+			out.writeLong(LRParser.numTokens);
+			out.writeLong(NumberizedSentence.totalNNZ);
+		}
+		try {
+			Files.move(partial.toPath(), entryDir().toPath(), StandardCopyOption.ATOMIC_MOVE);
+			U.pf("Stored feature cache as %s\n", entryDir());
+		} catch (IOException e) {
+			if ( ! exists()) throw e;
+			U.pf("Another run stored feature cache %s first, using that one\n", entryDir());
+			written.delete();
+			deleteRecursively(partial);
+			return open();
+		}
+		return openFeatures(entryDir());
+	}
+
+	/** Delete least recently used caches, other than this run's, until they all fit in -persistentCacheMaxGB. */
+	static void evict() throws IOException {
+		final long maxBytes = (long) (LRParser.persistentCacheMaxGB * 1e9);
+		File[] dirs = new File(LRParser.persistentCacheDir).listFiles();
+		if (dirs == null) return;
+		List<File> entries = new ArrayList<>();
+		long total = 0;
+		for (File dir : dirs) {
+			if ( ! new File(dir, META_FILE).exists()) continue;  // not a complete cache
+			entries.add(dir);
+			total += sizeOf(dir);
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(new File(a, META_FILE).lastModified(), new File(b, META_FILE).lastModified());
+			}
+		});
+		for (File dir : entries) {
+			if (total <= maxBytes) break;
+			if (dir.getName().equals(key)) continue;
+			long size = sizeOf(dir);
+			if ( ! evictUnlessLocked(dir)) {
+				U.pf("Not evicting feature cache %s (%.1f MB), another run is using it\n", dir, size/1e6);
+				continue;
+			}
+			U.pf("Evicted feature cache %s (%.1f MB)\n", dir, size/1e6);
+			total -= size;
+		}
+	}
+
+	/** delete a cache if no other run holds its lock.  Returns whether it did. */
+	static boolean evictUnlessLocked(File dir) throws IOException {
+		File lockFile = lockFile(dir.getName());
+		try (FileChannel ch = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			FileLock lock = ch.tryLock();
+			if (lock == null) return false;
+			// the meta file goes first, so a half-deleted cache is never taken for a complete one
+			Files.deleteIfExists(new File(dir, META_FILE).toPath());
+			deleteRecursively(dir);
+			// a run waiting on this lock file will find the cache gone; one that opens it after this creates a new one
+			Files.deleteIfExists(lockFile.toPath());
+			lock.release();
+			return true;
+		}
+	}
+
+	/** bytes in dir's files, including those in subdirectories. */
+	static long sizeOf(File dir) {
+		long size = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) size += f.isDirectory() ? sizeOf(f) : f.length();
+		}
+		return size;
+	}
+
+	static void deleteRecursively(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.isDirectory()) deleteRecursively(f);
+				else Files.deleteIfExists(f.toPath());
+			}
+		}
+		Files.deleteIfExists(dir.toPath());
+	}
+
+	/** the extraction-time pruning decisions, i.e. every sentence's singleton probs thresholded. */
+	static String pruningDigest() {
+		MessageDigest md = sha1();
+		for (int snum=0; snum<LRParser.inputSentences.length; snum++) {
+			byte[] pruned = new byte[LRParser.inputSentences[snum].size()];
+			for (int t=0; t<pruned.length; t++) {
+				pruned[t] = (byte) (LRParser.isTokenPruned(LRParser.inputSentences[snum], t) ? 1 : 0);
+			}
+			md.update(pruned);
+			md.update((byte) '\n');
+		}
+		return hex(md.digest());
+	}
+
+	static String classDigest(Class<?> c) throws IOException {
+		String resource = "/" + c.getName().replace('.', '/') + ".class";
+		try (InputStream in = c.getResourceAsStream(resource)) {
+			if (in == null) return "unknown";
+			return hex(streamDigest(in));
+		}
+	}
+
+	static String fileDigest(File f) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+			return hex(streamDigest(in));
+		}
+	}
+
+	static byte[] streamDigest(InputStream in) throws IOException {
+		MessageDigest md = sha1();
+		byte[] buf = new byte[1<<16];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			md.update(buf, 0, n);
+		}
+		return md.digest();
+	}
+
+	static void addToKey(MessageDigest md, StringBuilder desc, String name, String value) throws IOException {
+		String line = name + "=" + value + "\n";
+		md.update(line.getBytes("UTF-8"));
+		desc.append(line);
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("no SHA-1", e);
+		}
+	}
+
+	static byte[] sha1(byte[] bytes) {
+		return sha1().digest(bytes);
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
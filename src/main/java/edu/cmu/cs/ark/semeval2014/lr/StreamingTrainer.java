@@ -0,0 +1,136 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import util.U;
+import util.Vocabulary;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentence;
+import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentenceParser;
+import edu.cmu.cs.ark.semeval2014.prune.Prune;
+import edu.cmu.cs.ark.semeval2014.util.GenerateGraphsAndVocab;
+import sdp.graph.Graph;
+import sdp.io.GraphReader;
+
+/**
+ * -streamWindow N: out-of-core training.  Instead of holding every sentence and gold graph in memory, each iter
+ * reads -depInput and -sdpInput in lockstep, N sentences at a time, and trains on one window before reading the next.
+ * While a window is being trained on, it's what LRParser.inputSentences and graphMatrices hold.
+ *
+ * The label vocab comes from a light first pass over -sdpInput that keeps no graphs.
+ * The preprocessor (Prune) and top classifier are trained on the first window only, since they need all their data in memory.
+ * Features are extracted on the fly every iter (so it needs -useHashing and no feature cache), and -shuffle shuffles within each window.
+ */
+class StreamingTrainer {
+	/** sentences per iter, as of the last complete pass. */
+	static int numSentences = 0;
+
+	/**
+	 * Read the label vocab, and train the top classifier and preprocessor on the first window.
+	 * Leaves that window in LRParser.inputSentences and graphMatrices, with the preprocessor's predictions in it.
+	 */
+	static Vocabulary setUp() throws IOException {
+		U.pf("Reading the label vocab from %s\n", LRParser.sdpFile);
+		Vocabulary labelVocab = GenerateGraphsAndVocab.readLabelVocab(LRParser.sdpFile);
+		U.pf("%d labels.  Training the preprocessing models on the first %d sentences\n", labelVocab.size(), LRParser.streamWindow);
+		try (Reader reader = new Reader(labelVocab)) {
+			reader.readWindow();
+		}
+		final InputAnnotatedSentence[] firstWindow = LRParser.inputSentences;
+		LRParser.trainTopClassifier(new Runnable() {
+			@Override
+			public void run() {
+				LRParser.topClassifier.train(firstWindow, LRParser.modelFile + ".topmodel");
+			}
+		});
+		LRParser.preprocessor = new Prune(LRParser.inputSentences, LRParser.modelFile);
+		LRParser.preprocessor.trainModels(labelVocab, LRParser.graphMatrices, LRParser.concurrentStages);
+		LRParser.preprocessor.predictIntoInputs();
+		return labelVocab;
+	}
+
+	/** replaces LRParser.trainingOuterLoopOnline(). */
+	static void trainingOuterLoop() throws IOException {
+		LRParser.allocateCoefs();
+		for (int outer=0; outer<LRParser.numIters; outer++) {
+			U.pf("iter %3d ", outer);  System.out.flush();
+			double t0 = System.currentTimeMillis();
+			double ll = 0;
+			int n = 0;
+			try (Reader reader = new Reader(LRParser.model.labelVocab)) {
+				while (reader.readWindow()) {
+					LRParser.preprocessor.predictIntoInputs(LRParser.inputSentences);
+					LRParser.setSentenceIndexOrder();
+					ll += LRParser.trainOnSentences();
+					n += LRParser.inputSentences.length;
+				}
+			}
+			numSentences = n;
+			LRParser.finishTrainOnlineIter(ll);
+			if (LRParser.finishOuterIter(outer, t0)) break;
+		}
+	}
+
+	/** reads -depInput and -sdpInput in lockstep, a window at a time. */
+	static class Reader implements Closeable {
+		final BufferedReader deps;
+		final GraphReader graphs;
+		final Vocabulary labelVocab;
+
+		Reader(Vocabulary labelVocab) throws IOException {
+			this.labelVocab = labelVocab;
+			deps = new BufferedReader(new InputStreamReader(new FileInputStream(LRParser.depFile), "UTF-8"));
+			graphs = new GraphReader(LRParser.sdpFile);
+		}
+
+		/**
+		 * Read up to -streamWindow sentences and their gold graphs into LRParser.inputSentences and graphMatrices.
+		 * Returns false, reading nothing, at the end of the data.
+		 */
+		boolean readWindow() throws IOException {
+			List<InputAnnotatedSentence> sentences = new ArrayList<>();
+			List<int[][]> matrices = new ArrayList<>();
+			String block;
+			while (sentences.size() < LRParser.streamWindow && (block = nextBlock()) != null) {
+				InputAnnotatedSentence sent = InputAnnotatedSentenceParser.fromString(block);
+				Graph graph = graphs.readGraph();
+				if (graph == null) throw new IOException(U.sf("%s has fewer graphs than %s has sentences", LRParser.sdpFile, LRParser.depFile));
+				int n = graph.getNNodes() - 1;
+				assert n == sent.size() : U.sf("sentence %s has %d tokens but its graph has %d", sent.sentenceId, sent.size(), n);
+				sentences.add(sent);
+				matrices.add(GenerateGraphsAndVocab.convertGraphToAdjacencyMatrix(graph, n, labelVocab));
+			}
+			if (sentences.isEmpty()) return false;
+			LRParser.inputSentences = sentences.toArray(new InputAnnotatedSentence[sentences.size()]);
+			LRParser.graphMatrices = matrices;
+			return true;
+		}
+
+		/** the next sentence's lines, like Corpus.getInputAnnotatedSentences(): runs of blank lines separate sentences. */
+		String nextBlock() throws IOException {
+			String line;
+			while ((line = deps.readLine()) != null && line.isEmpty()) { }
+			if (line == null) return null;
+			StringBuilder sb = new StringBuilder(line);
+			while ((line = deps.readLine()) != null && ! line.isEmpty()) {
+				sb.append('\n').append(line);
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				deps.close();
+			} finally {
+				graphs.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package edu.cmu.cs.ark.semeval2014.lr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * One of several models trained side by side over a single feature cache: a setting of a -sweep grid, or one of -formalisms.
+ * Each has its own model parameters and training state.
+ * -sweep configs share the model's vocabularies, and only the coefs and what goes with them are per-config.
+ * -formalisms configs also have their own label side of the model, gold graphs, and preprocessor predictions, but share the percept vocab.
+ *
+ * LRParser keeps training state in globals, so a config is trained by activate()-ing it (swapping its state into the globals),
+ * running the usual code, and deactivate()-ing it (swapping the possibly reallocated state back out).
+ */
+class TrainingConfig {
+	/** model file suffix, e.g. "l2reg0.1_learningRate0.05", or "dm" */
+	final String name;
+	double l2reg = LRParser.l2reg;
+	double learningRate = LRParser.learningRate;
+	double noedgeWeight = LRParser.noedgeWeight;
+
+	float[] coefs;
+	float[] ssGrad;
+	AdagradHistory leanHistory;
+	FusedAdagrad fused;
+	int[] l2StepsApplied;
+	int l2StepsDue = 0;
+	Random noedgeSampler = LRParser.noedgeSampleRate < 1 ? new Random(LRParser.noedgeSampleSeed) : null;
+	/** only under -formalisms: this formalism's model (sharing the percept vocab), gold graphs, and preprocessor pruning probs per sentence. */
+	Model model;
+	List<int[][]> graphMatrices;
+	double[][] singletonPredProbs;
+	/** data loglik of the iteration in progress */
+	double ll = 0;
+
+	TrainingConfig(String name) {
+		this.name = name;
+	}
+
+	void set(String param, double value) {
+		switch (param) {
+		case "l2reg": l2reg = value; break;
+		case "learningRate": learningRate = value; break;
+		case "noedgeWeight": noedgeWeight = value; break;
+		default: throw new RuntimeException("can't sweep over " + param);
+		}
+	}
+
+	void activate() {
+		if (model != null) {
+			LRParser.model = model;
+			LRParser.labelVocab = model.labelVocab;
+			LRParser.graphMatrices = graphMatrices;
+		}
+		LRParser.l2reg = l2reg;
+		LRParser.learningRate = learningRate;
+		LRParser.noedgeWeight = noedgeWeight;
+		LRParser.model.coefs = coefs;
+		LRParser.ssGrad = ssGrad;
+		LRParser.leanHistory = leanHistory;
+		LRParser.fused = fused;
+		LRParser.l2StepsApplied = l2StepsApplied;
+		LRParser.l2StepsDue = l2StepsDue;
+		LRParser.noedgeSampler = noedgeSampler;
+	}
+
+	void deactivate() {
+		coefs = LRParser.model.coefs;
+		ssGrad = LRParser.ssGrad;
+		leanHistory = LRParser.leanHistory;
+		fused = LRParser.fused;
+		l2StepsApplied = LRParser.l2StepsApplied;
+		l2StepsDue = LRParser.l2StepsDue;
+		noedgeSampler = LRParser.noedgeSampler;
+	}
+
+	/**
+	 * The cross product of a grid spec like "l2reg=0.1,0.5,1;learningRate=0.05,0.1".
+	 * Unswept parameters keep their command line values.
+	 */
+	static List<TrainingConfig> parseGrid(String spec) {
+		List<TrainingConfig> configs = new ArrayList<>();
+		configs.add(new TrainingConfig(""));
+		for (String dim : spec.split(";")) {
+			if (dim.trim().isEmpty()) continue;
+			String[] parts = dim.split("=");
+			if (parts.length != 2) throw new RuntimeException("bad -sweep dimension, want name=v1,v2,...: " + dim);
+			String param = parts[0].trim();
+			List<TrainingConfig> expanded = new ArrayList<>();
+			for (TrainingConfig base : configs) {
+				for (String v : parts[1].split(",")) {
+					v = v.trim();
+					String name = base.name.isEmpty() ? param + v : base.name + "_" + param + v;
+					TrainingConfig c = new TrainingConfig(name);
+					c.l2reg = base.l2reg;
+					c.learningRate = base.learningRate;
+					c.noedgeWeight = base.noedgeWeight;
+					c.set(param, Double.parseDouble(v));
+					expanded.add(c);
+				}
+			}
+			configs = expanded;
+		}
+		return configs;
+	}
+}
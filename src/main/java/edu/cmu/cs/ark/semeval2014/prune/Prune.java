@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import mltools.classifier.BinaryLogreg;
 import scala.Option;
@@ -26,6 +27,7 @@ import edu.cmu.cs.ark.semeval2014.lr.fe.LinearOrderFeatures;
 import edu.cmu.cs.ark.semeval2014.lr.fe.SubcatSequenceFE;
 import edu.cmu.cs.ark.semeval2014.lr.fe.UnlabeledDepFE;
 import edu.cmu.cs.ark.semeval2014.util.CounterMap;
+import edu.cmu.cs.ark.semeval2014.util.StageScheduler;
 
 public class Prune {
 	private int numIter = 10;
@@ -45,9 +47,9 @@ public class Prune {
 	private final String TRUE = "t";
 	private final String FALSE = "f";
 	private final String modelFileName;
-	private final String singletonFileName = "singletonModel.ser";
-	private final String predicateFileName = "predicateModel.ser";
-	private final String singletonLRFileName = "singletonLR.txt";
+	private static final String singletonFileName = "singletonModel.ser";
+	private static final String predicateFileName = "predicateModel.ser";
+	private static final String singletonLRFileName = "singletonLR.txt";
 		
 	// featuresByLabel: map from the labels to the features computed from the labels
 	// labelFeatureVocab maps from the features computed from the labels to a number representing that feature
@@ -158,35 +160,63 @@ public class Prune {
 	
 	// to learn the weight vectors 
 	public void trainModels(Vocabulary lv, List<int[][]> graphMatrices){
-		allFE = initializeFeatureExtractors();
-		for (FE.FeatureExtractor fe : allFE) {
-			assert (fe instanceof FE.TokenFE) || (fe instanceof FE.EdgeFE) : "all feature extractors need to implement one of the interfaces!";
-			fe.initializeAtStartup();
-		}
+		trainModels(lv, graphMatrices, false);
+	}
+
+	// concurrently: train the three models, which don't depend on each other, on separate threads.  returns once all are trained.
+	public void trainModels(Vocabulary lv, List<int[][]> graphMatrices, boolean concurrently){
+		allFE = newFeatureExtractors();
 		
 		U.pf("Training preproc ('Prune') models.\n");
 		initialize(graphMatrices, lv);
 		
-		// to learn the weights for the singletons
-		singletonModel = new PruneModel();
-		initializeWeights(singletonModel);
-		trainingOuterLoopOnline(singletonModel, trainingSingletonIndicators);
-		singletonModel.save(modelFileName + "." + singletonFileName);
-		
-		//trainError(sModel.weights, singletons);
-		
-		// to learn the weights for the predicates
-		predicateModel = new PruneModel();
-		initializeWeights(predicateModel);
-		trainingOuterLoopOnline(predicateModel, trainingPredicateIndicators);
-		predicateModel.save(modelFileName + "." + predicateFileName);
-		
-		//trainError(pModel.weights, predicates);
-//		dumpDecisions(10);
-		
-		addSingletonLRTrainingData();
-		singletonLR.doTraining(modelFileName + "." + singletonLRFileName);
-		
+		Runnable singletonStage = new Runnable() {
+			@Override
+			public void run() {
+				// to learn the weights for the singletons
+				singletonModel = trainPruneModel(trainingSingletonIndicators);
+				singletonModel.save(modelFileName + "." + singletonFileName);
+				//trainError(sModel.weights, singletons);
+			}
+		};
+		Runnable predicateStage = new Runnable() {
+			@Override
+			public void run() {
+				// to learn the weights for the predicates
+				predicateModel = trainPruneModel(trainingPredicateIndicators);
+				predicateModel.save(modelFileName + "." + predicateFileName);
+				//trainError(pModel.weights, predicates);
+//				dumpDecisions(10);
+			}
+		};
+		Runnable singletonLRStage = new Runnable() {
+			@Override
+			public void run() {
+				addSingletonLRTrainingData();
+				singletonLR.doTraining(modelFileName + "." + singletonLRFileName);
+			}
+		};
+		if (concurrently) {
+			List<Future<?>> stages = new ArrayList<>();
+			stages.add(StageScheduler.start("prune singletons", singletonStage));
+			stages.add(StageScheduler.start("prune predicates", predicateStage));
+			stages.add(StageScheduler.start("prune singletonLR", singletonLRStage));
+			for (Future<?> stage : stages) StageScheduler.await(stage);
+		}
+		else {
+			singletonStage.run();
+			predicateStage.run();
+			singletonLRStage.run();
+		}
+	}
+
+	// each model gets its own feature extractors, so models can be trained concurrently.
+	private PruneModel trainPruneModel(List<int[]> indicators) {
+		List<FE.FeatureExtractor> fes = newFeatureExtractors();
+		PruneModel model = new PruneModel();
+		initializeWeights(model, fes);
+		trainingOuterLoopOnline(model, indicators, fes);
+		return model;
 	}
 	
 	
@@ -208,7 +238,7 @@ public class Prune {
 		int incorrect = 0;
         for (int snum=0; snum<inputSentences.length; snum++) {
         	if (snum % 100==0) U.pf(".");
-        	List<Map<String, Set<String>>> feats = computeFeats(snum);
+        	List<Map<String, Set<String>>> feats = computeFeats(snum, allFE);
     		int[] sequenceOfLabels = test.get(snum);
     		Viterbi v = new Viterbi(weights);
     		String[] labels = v.decode(feats);
@@ -238,9 +268,9 @@ public class Prune {
         }
 	}
 	
-	private void initializeWeights(PruneModel model){
+	private void initializeWeights(PruneModel model, List<FE.FeatureExtractor> fes){
 		for (int i = 0; i < inputSentences.length; i++){
-			List<Map<String, Set<String>>> feats = computeFeats(i);
+			List<Map<String, Set<String>>> feats = computeFeats(i, fes);
 			for (int j = 0; j < feats.size(); j++){
 				for (String l : feats.get(j).keySet()){
 					for (String w : feats.get(j).get(l)){
@@ -260,17 +290,17 @@ public class Prune {
 	}
 
 	// the outer training loop. loops over the data numIter times.
-	private void trainingOuterLoopOnline(PruneModel singletonModel, List<int[]> train) {
+	private void trainingOuterLoopOnline(PruneModel singletonModel, List<int[]> train, List<FE.FeatureExtractor> fes) {
 		for (int i = 0; i < numIter; i++){
-			trainOnlineIter(singletonModel, train);
+			trainOnlineIter(singletonModel, train, fes);
 		}
 	}
 
 	// the inner training loop. Within the dataset, loops over each example.
-	private void trainOnlineIter(PruneModel model, List<int[]> train ) {
+	private void trainOnlineIter(PruneModel model, List<int[]> train, List<FE.FeatureExtractor> fes) {
         for (int snum=0; snum<inputSentences.length; snum++) {
         	if (snum % 100==0) U.pf(".");
-        	List<Map<String, Set<String>>> feats = computeFeats(snum);
+        	List<Map<String, Set<String>>> feats = computeFeats(snum, fes);
     		int[] sequenceOfLabels = train.get(snum);
     		ghettoPerceptronUpdate(sequenceOfLabels, feats, model);
         }
@@ -329,11 +359,11 @@ public class Prune {
 		}
 	}
 	
-	private List<Map<String, Set<String>>> computeFeats(int snum){
+	private List<Map<String, Set<String>>> computeFeats(int snum, List<FE.FeatureExtractor> fes){
 		
 		TokenFeatAdder featureAdder = new TokenFeatAdder();
 		
-		for (FE.FeatureExtractor fe : allFE) {
+		for (FE.FeatureExtractor fe : fes) {
 			fe.setupSentence(inputSentences[snum]);
 		}
 		
@@ -342,7 +372,7 @@ public class Prune {
 		featureAdder.feats.add(start);
 		
 		for (int i = 0; i < inputSentences[snum].size(); i++){
-			for (FE.FeatureExtractor fe : allFE){
+			for (FE.FeatureExtractor fe : fes){
 				assert (fe instanceof FE.TokenFE);
 				((FE.TokenFE) fe).features(i, featureAdder);
 			}
@@ -367,6 +397,15 @@ public class Prune {
 		return allFE;
 	}
 
+	private List<FE.FeatureExtractor> newFeatureExtractors() {
+		final List<FE.FeatureExtractor> fes = initializeFeatureExtractors();
+		for (FE.FeatureExtractor fe : fes) {
+			assert (fe instanceof FE.TokenFE) || (fe instanceof FE.EdgeFE) : "all feature extractors need to implement one of the interfaces!";
+			fe.initializeAtStartup();
+		}
+		return fes;
+	}
+
 	private Map<String, Set<String>> initializeFeats(){
 		Map<String, Set<String>> featsByLabel = new HashMap<String, Set<String>>();
 		Set<String> conjoinedTrue = new HashSet<String>();
@@ -413,6 +452,11 @@ public class Prune {
 		System.out.println();
 	}
 
+	/** the files trainModels() saves are named modelFileName + "." + each of these. */
+	public static String[] modelFileSuffixes() {
+		return new String[] { singletonFileName, predicateFileName, singletonLRFileName };
+	}
+
 	public void loadModels() {
 		singletonModel = new PruneModel();
 		singletonModel.load(modelFileName + "." + singletonFileName);
@@ -443,6 +487,12 @@ public class Prune {
 		
 	}
 
+	// switches this preprocessor over to other sentences, e.g. the next window of streamed training data, and predicts into them.
+	public void predictIntoInputs(InputAnnotatedSentence[] sentences){
+		inputSentences = sentences;
+		predictIntoInputs();
+	}
+
 	private void computePrecisionAndRecall(List<int[][]> graphMatrices, Vocabulary graphLabelVocab) {
 		// generate the gold singletons and predicates
 		List<int[]> goldPreds = convertGraphsToPredicateIndicators(graphMatrices, graphLabelVocab);
@@ -561,12 +611,8 @@ public class Prune {
 	/** return predicted labels, as integers
 	 * todo eventually: clean up messiness with labels vs integers and all that.  why not just use the raw integer numberings? */
 	private int[] predict(PruneModel model, int snum) {
-		allFE = initializeFeatureExtractors();
-		for (FE.FeatureExtractor fe : allFE) {
-			assert (fe instanceof FE.TokenFE) || (fe instanceof FE.EdgeFE) : "all feature extractors need to implement one of the interfaces!";
-			fe.initializeAtStartup();
-		}
-		List<Map<String, Set<String>>> feats = computeFeats(snum);
+		allFE = newFeatureExtractors();
+		List<Map<String, Set<String>>> feats = computeFeats(snum, allFE);
 		// run viterbi
 		Viterbi v = new Viterbi(model.weights);
 		String[] labelsAsStrings = v.decode(feats);
@@ -43,9 +43,11 @@ public class TopClassifier {
 	}
 	
 	public void train(String depFile, String modelOutputFile) {
+		train(Corpus.getInputAnnotatedSentences(depFile), modelOutputFile);
+	}
+	public void train(InputAnnotatedSentence[] inputSentences, String modelOutputFile) {
 		U.p("Training topness classifier");
 		
-		InputAnnotatedSentence[] inputSentences = Corpus.getInputAnnotatedSentences(depFile);
 		for (InputAnnotatedSentence s1 : inputSentences) {
 			for (int t=0; t<s1.size(); t++) {
 				boolean y = s1.isTop[t];
@@ -46,6 +46,22 @@ public class GenerateGraphsAndVocab {
 		labelVocab.lock();
 		return labelVocab;
 	}
+
+	/** the same label vocab as the constructor builds, but reading one graph at a time, without keeping any. */
+	public static Vocabulary readLabelVocab(String sdpFile) throws IOException {
+		Vocabulary labelVocab = new Vocabulary();
+		labelVocab.num(LRParser.NO_EDGE);
+		try (GraphReader reader = new GraphReader(sdpFile)) {
+			Graph graph;
+			while ((graph = reader.readGraph()) != null) {
+				for (Edge e : graph.getEdges()) {
+					labelVocab.num(e.label);
+				}
+			}
+		}
+		labelVocab.lock();
+		return labelVocab;
+	}
 	
 	private List<int[][]> convertGraphsToAdjacencyMatrices(List<Graph> graphs){
 		List<int[][]> graphMatrices = new ArrayList<>();
@@ -57,7 +73,7 @@ public class GenerateGraphsAndVocab {
 		return graphMatrices;
 	}
 	
-	private static int[][] convertGraphToAdjacencyMatrix(Graph graph, int n, Vocabulary labelVocab) {
+	public static int[][] convertGraphToAdjacencyMatrix(Graph graph, int n, Vocabulary labelVocab) {
 		int[][] edgeMatrix = new int[n][n];
 		for (int[] row : edgeMatrix) {
 			Arrays.fill(row, labelVocab.num(LRParser.NO_EDGE));
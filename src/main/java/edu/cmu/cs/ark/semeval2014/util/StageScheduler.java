@@ -0,0 +1,47 @@
+package edu.cmu.cs.ark.semeval2014.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import util.U;
+
+/**
+ * Runs independent training stages (top classifier, the Prune models, ...) on their own threads, for -concurrentStages.
+ * start() a stage as soon as its inputs are ready, and await() it right before its results are first needed.
+ */
+public class StageScheduler {
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "training-stage");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public static Future<?> start(final String name, final Runnable stage) {
+		U.pf("Starting stage: %s\n", name);
+		return pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				double t0 = System.currentTimeMillis();
+				stage.run();
+				U.pf("\n[stage %s done, %.1f sec]\n", name, (System.currentTimeMillis() - t0)/1000);
+			}
+		});
+	}
+
+	/** wait for a stage to finish.  If it failed, so does the caller. */
+	public static void await(Future<?> stage) {
+		try {
+			stage.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted waiting for a training stage", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("training stage failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.cmu.cs.ark.semeval2014.lr
+
+import java.io.File
+import org.scalatest.FlatSpec
+import org.scalatest.matchers.ShouldMatchers
+
+class BinaryModelFormatTest extends FlatSpec with ShouldMatchers {
+  def tempModelFile(): File = {
+    val f = File.createTempFile("model", ".bin")
+    f.deleteOnExit()
+    f
+  }
+
+  def allCoefs(m: Model): Seq[Float] = (0L until m.numCoefs()).map(f => m.coef(f))
+
+  def roundTrip(hashing: Boolean) {
+    SyntheticTraining.train(2, hashing = hashing)
+    val saved = LRParser.model
+    val file = tempModelFile()
+    LRParser.modelFormat = "binary"
+    LRParser.saveModel(file.getPath)
+    LRParser.modelFormat = "text"
+    BinaryModelFormat.isBinary(file.getPath) should equal (true)
+
+    val loaded = Model.load(file.getPath)
+    LRParser.useHashing should equal (hashing)
+    loaded.labelVocab.names() should equal (saved.labelVocab.names())
+    loaded.labelFeatureVocab.names() should equal (saved.labelFeatureVocab.names())
+    loaded.perceptVocab.names() should equal (saved.perceptVocab.names())
+    for (label <- 0 until saved.featuresByLabel.size) {
+      loaded.featuresByLabel.get(label).toSeq should equal (saved.featuresByLabel.get(label).toSeq)
+    }
+    allCoefs(loaded) should equal (allCoefs(saved))
+  }
+
+  "A binary model" should "load with the vocabularies and coefs it was saved with" in {
+    roundTrip(hashing = false)
+  }
+
+  it should "load with the hashing options and coefs it was saved with" in {
+    roundTrip(hashing = true)
+  }
+
+  "Quantized coefs" should "be within half their block's scale of the float coefs" in {
+    SyntheticTraining.train(2, hashing = true)
+    val model = LRParser.model
+    for (bits <- Seq(8, 16)) {
+      val q = InferenceCoefs.Quantized.quantize(model, bits, 64)
+      for (f <- 0 until model.coefs.length) {
+        val coef = model.coefs(f)
+        val scale = q.scales(f >>> q.blockShift)
+        // plus float rounding in the division and the multiplication back
+        math.abs(q.get(f) - coef) should be <= (scale / 2 + 2 * java.lang.Math.ulp(coef))
+      }
+    }
+  }
+
+  it should "refuse 2^31 or more coefs, even without -ea" in {
+    intercept[RuntimeException] { new InferenceCoefs.Quantized(8, 64, 1L << 31) }
+  }
+
+  it should "load from a quantized binary model exactly as they were written" in {
+    SyntheticTraining.train(2, hashing = true)
+    val model = LRParser.model
+    for (bits <- Seq(8, 16)) {
+      val quantized = new Model(model.labelVocab, model.labelFeatureVocab, model.featuresByLabel, model.perceptVocab)
+      quantized.inferenceCoefs = InferenceCoefs.Quantized.quantize(model, bits, 64)
+      val file = tempModelFile()
+      BinaryModelFormat.write(quantized, file, false)
+      val loaded = Model.load(file.getPath)
+      loaded.inferenceCoefs.isInstanceOf[InferenceCoefs.Quantized] should equal (true)
+      allCoefs(loaded) should equal (allCoefs(quantized))
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package edu.cmu.cs.ark.semeval2014.lr
+
+import java.io.File
+import org.scalatest.FlatSpec
+import org.scalatest.matchers.ShouldMatchers
+import scala.util.Random
+
+class FeatureCacheTest extends FlatSpec with ShouldMatchers {
+  val random = new Random(0)
+  val sentences = for (s <- 0 until 200) yield {
+    val T = 1 + random.nextInt(40)
+    val ns = new NumberizedSentence(T)
+    for (k <- 0 until random.nextInt(500)) {
+      ns.add(random.nextInt(T), random.nextInt(T), random.nextInt(), if (random.nextBoolean()) 1.0 else random.nextDouble())
+    }
+    ns
+  }
+
+  def tempCacheFile(): String = {
+    val f = File.createTempFile("featcache", ".bin")
+    f.delete()
+    f.getPath
+  }
+
+  def sameSentence(a: NumberizedSentence, b: NumberizedSentence) {
+    a.T should equal (b.T)
+    a.nnz should equal (b.nnz)
+    for (kk <- 0 until a.nnz) {
+      (a.i(kk), a.j(kk), a.perceptnum(kk), a.value(kk)) should equal ((b.i(kk), b.j(kk), b.perceptnum(kk), b.value(kk)))
+    }
+  }
+
+  def roundTrip(cache: FeatureCache) {
+    sentences.foreach(cache.write)
+    cache.finishWriting()
+    for (iter <- 0 until 2) {
+      cache.startIteration()
+      for (ns <- sentences) sameSentence(cache.next(), ns)
+    }
+    cache.delete()
+  }
+
+  "A KryoFeatureCache" should "read back what was written, every iteration" in {
+    roundTrip(new KryoFeatureCache(tempCacheFile()))
+  }
+
+  "A MappedFeatureCache" should "read back what was written, every iteration" in {
+    roundTrip(new MappedFeatureCache(tempCacheFile()))
+  }
+
+  it should "read sentences back in any order" in {
+    val cache = new MappedFeatureCache(tempCacheFile())
+    sentences.foreach(cache.write)
+    cache.finishWriting()
+    cache.supportsRandomAccess() should equal (true)
+    for (pos <- random.shuffle((0 until sentences.size).toList)) sameSentence(cache.get(pos), sentences(pos))
+    cache.delete()
+  }
+
+  it should "be reopenable from its file" in {
+    val file = tempCacheFile()
+    val written = new MappedFeatureCache(file)
+    sentences.foreach(written.write)
+    written.finishWriting()
+    val reopened = MappedFeatureCache.openForReading(file)
+    reopened.startIteration()
+    for (ns <- sentences) sameSentence(reopened.next(), ns)
+    reopened.delete()
+  }
+
+  "A KryoFeatureCache" should "be reopenable from its file" in {
+    val file = tempCacheFile()
+    val written = new KryoFeatureCache(file)
+    sentences.foreach(written.write)
+    written.finishWriting()
+    val reopened = KryoFeatureCache.openForReading(file)
+    reopened.startIteration()
+    for (ns <- sentences) sameSentence(reopened.next(), ns)
+    reopened.delete()
+  }
+
+  "A PackedFeatureCache" should "read back what was written, all in memory" in {
+    roundTrip(new PackedFeatureCache(tempCacheFile(), Long.MaxValue))
+  }
+
+  it should "read back what was written when part of it spills to disk" in {
+    roundTrip(new PackedFeatureCache(tempCacheFile(), 20000))
+  }
+
+  it should "read back what was written when all of it spills to disk" in {
+    roundTrip(new PackedFeatureCache(tempCacheFile(), 0))
+  }
+
+  "A persistent cache entry" should "count and delete the files in its subdirectories too" in {
+    val dir = java.nio.file.Files.createTempDirectory("persistentcache").toFile
+    val sub = new File(dir, "sub")
+    sub.mkdir()
+    for ((d, n) <- Seq((dir, 100), (sub, 1000))) {
+      java.nio.file.Files.write(new File(d, "f" + n).toPath, new Array[Byte](n))
+    }
+    PersistentFeatureCache.sizeOf(dir) should equal (1100)
+    PersistentFeatureCache.deleteRecursively(dir)
+    dir.exists() should equal (false)
+  }
+}
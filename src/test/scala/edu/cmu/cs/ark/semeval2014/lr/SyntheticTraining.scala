@@ -0,0 +1,99 @@
+package edu.cmu.cs.ark.semeval2014.lr
+
+import java.util.Random
+import _root_.util.Vocabulary
+import edu.cmu.cs.ark.semeval2014.common.InputAnnotatedSentence
+
+/**
+ * A small random training problem, and LRParser's globals set up to train on it in this process.
+ * The trainer keeps its state in globals, so suites using this can't run in parallel (see build.sbt).
+ */
+object SyntheticTraining {
+  val numSentences = 100
+  val numPercepts = 300
+
+  val inputSentences = new Array[InputAnnotatedSentence](numSentences)
+  val graphMatrices = new java.util.ArrayList[Array[Array[Int]]]()
+  val sentences = new Array[NumberizedSentence](numSentences)
+
+  private val random = new Random(11)
+  for (s <- 0 until numSentences) {
+    val T = 2 + random.nextInt(10)
+    val ns = new NumberizedSentence(T)
+    val isent = new InputAnnotatedSentence(T)
+    isent.singletonPredProbs = new Array[Double](T)
+    val edges = Array.ofDim[Int](T, T)
+    for (i <- 0 until T; j <- 0 until T) {
+      edges(i)(j) = if (random.nextInt(5) == 0) 1 + random.nextInt(2) else 0
+      if (i != j) {
+        for (q <- 0 until 4) ns.add(i, j, random.nextInt(numPercepts), if (random.nextInt(3) == 0) random.nextDouble() else 1.0)
+      }
+    }
+    inputSentences(s) = isent
+    graphMatrices.add(edges)
+    sentences(s) = ns
+  }
+
+  /** a fresh model and training state.  With a sweep grid, one per setting, as in -sweep. */
+  def setUp(hashing: Boolean, lazyL2: Boolean = false, fusedKernel: Boolean = false, sweep: String = null) {
+    val labelVocab = new Vocabulary()
+    for (label <- Seq(LRParser.NO_EDGE, "A", "B")) labelVocab.num(label)
+    labelVocab.lock()
+    val labelFeatureVocab = new Vocabulary()
+    for (k <- 0 until 4) labelFeatureVocab.num("lf" + k)
+    labelFeatureVocab.lock()
+    val featuresByLabel = new java.util.ArrayList[Array[Int]]()
+    for (feats <- Seq(Array(0), Array(1, 3), Array(2, 3))) featuresByLabel.add(feats)
+    val perceptVocab = new Vocabulary()
+    if ( ! hashing) for (p <- 0 until numPercepts) perceptVocab.num("p" + p)
+    LRParser.model = new Model(labelVocab, labelFeatureVocab, featuresByLabel, perceptVocab)
+    LRParser.inputSentences = inputSentences
+    LRParser.graphMatrices = graphMatrices
+
+    LRParser.useHashing = hashing
+    LRParser.numHashBuckets = 2001
+    LRParser.lazyL2 = lazyL2
+    LRParser.fusedKernel = fusedKernel
+    LRParser.adagradStorage = "float"
+    LRParser.trainThreads = 1
+    LRParser.l2reg = 0.5
+    LRParser.learningRate = 0.1
+    LRParser.noedgeWeight = 0.3
+    LRParser.noedgeSampleRate = 0.5
+    LRParser.noedgeSampler = new Random(LRParser.noedgeSampleSeed)
+    LRParser.shuffle = true
+    LRParser.shuffleRandom = new Random(5)
+    LRParser.sentenceIndexOrder = LRParser.intRangeList(numSentences)
+    LRParser.cacheOrder = null
+
+    LRParser.fused = null
+    LRParser.ssGrad = null
+    LRParser.leanHistory = null
+    LRParser.offHeap = null
+    LRParser.trainingConfigs = if (sweep == null) null else TrainingConfig.parseGrid(sweep)
+    LRParser.allocateAllCoefs()
+  }
+
+  /** one training iteration over every sentence, in a fresh random order. */
+  def iter() {
+    LRParser.reshuffleSentenceIndexOrder()
+    var ll = 0.0
+    for (pos <- 0 until LRParser.sentenceIndexOrder.size) {
+      val snum = LRParser.sentenceIndexOrder.get(pos).intValue
+      ll += LRParser.trainOnExample(snum, sentences(snum))
+    }
+    LRParser.finishTrainOnlineIter(ll)
+  }
+
+  /** a copy of the current model's coefs, with pending lazy L2 steps applied. */
+  def coefs(): Seq[Float] = {
+    LRParser.syncModelCoefs()
+    LRParser.model.coefs.clone().toSeq
+  }
+
+  def train(numIters: Int, hashing: Boolean, lazyL2: Boolean = false, fusedKernel: Boolean = false): Seq[Float] = {
+    setUp(hashing, lazyL2, fusedKernel)
+    for (i <- 0 until numIters) iter()
+    coefs()
+  }
+}
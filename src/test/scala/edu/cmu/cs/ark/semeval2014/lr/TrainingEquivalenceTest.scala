@@ -0,0 +1,75 @@
+package edu.cmu.cs.ark.semeval2014.lr
+
+import java.io.File
+import java.util.Random
+import org.scalatest.FlatSpec
+import org.scalatest.matchers.ShouldMatchers
+import SyntheticTraining._
+
+class TrainingEquivalenceTest extends FlatSpec with ShouldMatchers {
+  "Lazy L2" should "give the same coefs as the eager per-iteration sweep" in {
+    train(4, hashing = false, lazyL2 = true) should equal (train(4, hashing = false))
+  }
+
+  it should "give the same coefs as the eager sweep under hashing" in {
+    train(4, hashing = true, lazyL2 = true) should equal (train(4, hashing = true))
+  }
+
+  "The fused kernel" should "give the same coefs as the unfused update" in {
+    for (hashing <- Seq(false, true); lazyL2 <- Seq(false, true)) {
+      train(4, hashing = hashing, lazyL2 = lazyL2, fusedKernel = true) should equal (train(4, hashing = hashing, lazyL2 = lazyL2))
+    }
+  }
+
+  it should "refuse 2^30 coefs or more, even without -ea" in {
+    intercept[IllegalArgumentException] { new FusedAdagrad(FusedAdagrad.MAX_COEFS) }
+    val fused = new FusedAdagrad(10)
+    intercept[IllegalArgumentException] { fused.resize(Integer.MAX_VALUE) }
+  }
+
+  "A -sweep model" should "match a separate run with the same settings" in {
+    for (hashing <- Seq(false, true)) {
+      setUp(hashing = hashing, sweep = "l2reg=0.1,0.5;learningRate=0.1,0.2")
+      for (i <- 0 until 3) iter()
+      val swept = for (c <- LRParser.trainingConfigs.toArray(new Array[TrainingConfig](0))) yield {
+        c.activate()
+        val trained = coefs()
+        c.deactivate()
+        (c.l2reg, c.learningRate, trained)
+      }
+      swept.length should equal (4)
+      for ((l2reg, learningRate, sweptCoefs) <- swept) {
+        setUp(hashing = hashing)
+        LRParser.l2reg = l2reg
+        LRParser.learningRate = learningRate
+        for (i <- 0 until 3) iter()
+        coefs() should equal (sweptCoefs)
+      }
+    }
+  }
+
+  "A run resumed from a checkpoint" should "end with the same coefs as an uninterrupted run" in {
+    val modelFile = File.createTempFile("model", "")
+    modelFile.deleteOnExit()
+    LRParser.modelFile = modelFile.getPath
+    for (fusedKernel <- Seq(false, true); lazyL2 <- Seq(false, true)) {
+      val uninterrupted = train(4, hashing = true, lazyL2 = lazyL2, fusedKernel = fusedKernel)
+
+      setUp(hashing = true, lazyL2 = lazyL2, fusedKernel = fusedKernel)
+      iter()
+      iter()
+      Checkpoint.write(1)
+
+      setUp(hashing = true, lazyL2 = lazyL2, fusedKernel = fusedKernel)
+      // the checkpoint's generators should replace these
+      LRParser.shuffleRandom = new Random(98)
+      LRParser.noedgeSampler = new Random(99)
+      val checkpoint = Checkpoint.read(Checkpoint.file().getPath)
+      checkpoint.restore()
+      checkpoint.nextIter should equal (2)
+      for (i <- checkpoint.nextIter until 4) iter()
+      coefs() should equal (uninterrupted)
+    }
+    Checkpoint.file().delete()
+  }
+}